@@ -0,0 +1,65 @@
+package github.sejour.harvestmoon.benchmark;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import github.sejour.harvestmoon.parser.xml.Request;
+import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import lombok.experimental.UtilityClass;
+
+/**
+ * Generates /feed/entry style documents of {@code records} records, of which exactly {@link #ITEMS} are evenly spread
+ * {@code entry} records matched by {@link #ITEM_ROOT} and the rest are {@code other} records.
+ * Each record has {@code depth} levels of nested sections with {@code textLength} characters of text.
+ * <p>
+ * Benchmarks over these documents run {@link #ITEMS} operations per invocation, so that one operation is one item and
+ * {@code gc.alloc.rate.norm} is the allocation per emitted item whatever the size of the document.
+ * Since the number of items is fixed, {@code records} of 1000 makes a document where every record matches, and 100000
+ * one dominated by skipped records.
+ */
+@UtilityClass
+public class SyntheticFeed {
+    public static final int ITEMS = 1_000;
+
+    public static final ItemRootXPath ITEM_ROOT = new ItemRootXPath("/feed/entry");
+
+    public static final Request REQUEST = Request
+            .builder()
+            .attributeRequests(ImmutableSet.of("name"))
+            .childRequests(ImmutableMap.of(new XPath("title"), Request.builder().wantText(true).build(),
+                                           new XPath("description"), Request.builder().wantText(true).build(),
+                                           new XPath("img"), Request.builder()
+                                                                    .attributeRequests(ImmutableSet.of("src"))
+                                                                    .build()))
+            .build();
+
+    public static byte[] generate(int records, int depth, int textLength) {
+        if (records < ITEMS) {
+            throw new IllegalArgumentException("records must be at least " + ITEMS + ": " + records);
+        }
+        final var text = "x".repeat(textLength);
+        final var builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<feed>\n");
+        for (int i = 0; i < records; ++i) {
+            final var matched = (i + 1L) * ITEMS / records > (long) i * ITEMS / records;
+            final var name = matched ? "entry" : "other";
+            builder.append("  <").append(name).append(" id=\"").append(i).append("\" name=\"name-").append(i)
+                   .append("\">\n")
+                   .append("    <title>title-").append(i).append("</title>\n")
+                   .append("    <description><![CDATA[").append(text).append("]]></description>\n")
+                   .append("    <img src=\"http://www.example.com/").append(i).append(".jpg\" />\n");
+            for (int d = 0; d < depth; ++d) {
+                builder.append("<section level=\"").append(d).append("\"><p>").append(text).append("</p>");
+            }
+            for (int d = 0; d < depth; ++d) {
+                builder.append("</section>");
+            }
+            builder.append("\n  </").append(name).append(">\n");
+        }
+        builder.append("</feed>\n");
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,62 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.xpath.XPathFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import github.sejour.harvestmoon.benchmark.SyntheticFeed;
+
+// 1 operation と各 @Param の意味は SyntheticFeed を参照
+@State(Scope.Benchmark)
+@OperationsPerInvocation(SyntheticFeed.ITEMS)
+public class ParserBenchmark {
+    @Param({ "1000", "2000", "100000" })
+    public int records;
+
+    @Param({ "1", "4" })
+    public int depth;
+
+    @Param({ "64", "1024" })
+    public int textLength;
+
+    private Parser parser;
+    private StreamParser streamParser;
+    private byte[] document;
+
+    @Setup
+    public void setup() {
+        parser = new Parser(XMLInputFactory.newInstance(),
+                            XPathFactory.newInstance(),
+                            DocumentBuilderFactory.newInstance());
+        streamParser = new StreamParser(XMLInputFactory.newInstance());
+        document = SyntheticFeed.generate(records, depth, textLength);
+    }
+
+    @Benchmark
+    public void dom(Blackhole blackhole) throws Exception {
+        parser.parse(new ByteArrayInputStream(document), SyntheticFeed.ITEM_ROOT, SyntheticFeed.REQUEST)
+              .blockingSubscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws Exception {
+        streamParser.parse(new ByteArrayInputStream(document), SyntheticFeed.ITEM_ROOT, SyntheticFeed.REQUEST)
+                    .blockingSubscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    public void streamFlowable(Blackhole blackhole) throws Exception {
+        streamParser.parseFlowable(new ByteArrayInputStream(document), SyntheticFeed.ITEM_ROOT, SyntheticFeed.REQUEST)
+                    .blockingSubscribe(blackhole::consume);
+    }
+}
@@ -0,0 +1,61 @@
+package github.sejour.harvestmoon.path.xml;
+
+import java.io.StringReader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.StartElement;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+public class PathIteratorBenchmark {
+    private static final String ELEMENT = "<entry id='1' name='orange' genre='japanese' lang='ja' />";
+
+    private final PathIterator nameIterator = PathIterator.fromAbsoluteXPath("entry");
+    private final PathIterator attributeIterator = PathIterator.fromAbsoluteXPath("entry[@genre='japanese']");
+    private final PathIterator unmatchedIterator = PathIterator.fromAbsoluteXPath("//item");
+
+    private XMLStreamReader reader;
+    private StartElement element;
+
+    @Setup
+    public void setup() throws XMLStreamException {
+        final var factory = XMLInputFactory.newInstance();
+
+        reader = factory.createXMLStreamReader(new StringReader(ELEMENT));
+        reader.nextTag();
+
+        final var eventReader = factory.createXMLEventReader(new StringReader(ELEMENT));
+        element = eventReader.nextTag().asStartElement();
+    }
+
+    @Benchmark
+    public PathIterator cursorName() {
+        return nameIterator.next(reader);
+    }
+
+    @Benchmark
+    public PathIterator cursorAttribute() {
+        return attributeIterator.next(reader);
+    }
+
+    @Benchmark
+    public PathIterator cursorUnmatched() {
+        return unmatchedIterator.next(reader);
+    }
+
+    @Benchmark
+    public PathIterator eventName() {
+        return nameIterator.next(element);
+    }
+
+    @Benchmark
+    public PathIterator eventAttribute() {
+        return attributeIterator.next(element);
+    }
+}
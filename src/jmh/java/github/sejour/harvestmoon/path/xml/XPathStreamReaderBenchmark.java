@@ -0,0 +1,51 @@
+package github.sejour.harvestmoon.path.xml;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import github.sejour.harvestmoon.benchmark.SyntheticFeed;
+
+// 1 operation と各 @Param の意味は SyntheticFeed を参照
+@State(Scope.Benchmark)
+@OperationsPerInvocation(SyntheticFeed.ITEMS)
+public class XPathStreamReaderBenchmark {
+    @Param({ "1000", "2000", "100000" })
+    public int records;
+
+    @Param({ "1", "4" })
+    public int depth;
+
+    @Param({ "64", "1024" })
+    public int textLength;
+
+    private final XMLInputFactory factory = XMLInputFactory.newInstance();
+    private byte[] document;
+
+    @Setup
+    public void setup() {
+        document = SyntheticFeed.generate(records, depth, textLength);
+    }
+
+    @Benchmark
+    public void event(Blackhole blackhole) throws Exception {
+        final var reader = factory.createXMLEventReader(new ByteArrayInputStream(document));
+        XPathStreamReader.readAll(reader, SyntheticFeed.ITEM_ROOT.getIterator())
+                         .blockingSubscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    public void cursor(Blackhole blackhole) throws Exception {
+        final var reader = factory.createXMLStreamReader(new ByteArrayInputStream(document));
+        XPathStreamReader.readAll(reader, SyntheticFeed.ITEM_ROOT.getIterator())
+                         .blockingSubscribe(blackhole::consume);
+    }
+}
@@ -0,0 +1,64 @@
+package github.sejour.harvestmoon.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Value;
+
+/**
+ * Lock free histogram of non-negative values, bucketed by powers of two.
+ * Percentiles are therefore reported as the upper bound of the bucket they fall in.
+ */
+public class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    // バケット b には [2^(b-1), 2^b) の値が入る。0 以下の値はバケット 0 とする
+    public void record(long value) {
+        final var bucket = value <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        counts.incrementAndGet(bucket);
+        if (value > 0) {
+            sum.add(value);
+            max.accumulate(value);
+        }
+    }
+
+    public Snapshot snapshot() {
+        final var snapshotCounts = new long[BUCKETS];
+        var count = 0L;
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshotCounts[i] = counts.get(i);
+            count += snapshotCounts[i];
+        }
+        return new Snapshot(count, sum.sum(), max.get(), snapshotCounts);
+    }
+
+    @Value
+    public static class Snapshot {
+        long count;
+        long sum;
+        long max;
+        long[] buckets;
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        // quantile は 0 から 1 の値
+        public long percentile(double quantile) {
+            final var rank = (long) Math.ceil(quantile * count);
+            var seen = 0L;
+            for (int i = 0; i < buckets.length; ++i) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package github.sejour.harvestmoon.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * {@link ParseListener} that emits JDK Flight Recorder events.
+ * Items are recorded as {@code harvestmoon.ItemParsed}, the time of each {@link Phase} as
+ * {@code harvestmoon.ParsePhase}, and the end of each input as {@code harvestmoon.ParseCompleted} with the number of
+ * subtrees skipped in that input.
+ */
+public class JfrParseListener implements ParseListener {
+    @Override
+    public void onItem(long nanos, long chars) {
+        final var event = new ItemParsedEvent();
+        if (event.isEnabled()) {
+            event.duration = nanos;
+            event.chars = chars;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onPhase(Phase phase, long nanos) {
+        final var event = new ParsePhaseEvent();
+        if (event.isEnabled()) {
+            event.phase = phase.name();
+            event.duration = nanos;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void onComplete(long events, long chars, long skipped) {
+        final var event = new ParseCompletedEvent();
+        if (event.isEnabled()) {
+            event.events = events;
+            event.chars = chars;
+            event.skipped = skipped;
+            event.commit();
+        }
+    }
+}
+
+@Name("harvestmoon.ItemParsed")
+@Label("Item Parsed")
+@Category("Harvest Moon")
+class ItemParsedEvent extends Event {
+    @Label("Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long duration;
+
+    @Label("Characters")
+    long chars;
+}
+
+@Name("harvestmoon.ParsePhase")
+@Label("Parse Phase")
+@Category("Harvest Moon")
+class ParsePhaseEvent extends Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long duration;
+}
+
+@Name("harvestmoon.ParseCompleted")
+@Label("Parse Completed")
+@Category("Harvest Moon")
+class ParseCompletedEvent extends Event {
+    @Label("Events")
+    long events;
+
+    @Label("Characters")
+    long chars;
+
+    @Label("Skipped Subtrees")
+    long skipped;
+}
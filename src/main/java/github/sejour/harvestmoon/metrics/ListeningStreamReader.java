@@ -0,0 +1,99 @@
+package github.sejour.harvestmoon.metrics;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * Counts the events read from the wrapped reader and reports them to a {@link ParseListener} at the end of the
+ * document, or on {@link #close()} when the parse stopped before it.
+ * Subtrees skipped through {@link #listenerOf(XMLStreamReader, ParseListener)} are counted for this reader only, so
+ * that parses running concurrently with the same listener report their own counts.
+ */
+public class ListeningStreamReader extends StreamReaderDelegate {
+    private final ParseListener listener;
+    private long events;
+    private int depth;
+    private long chars = -1;
+    private long skipped;
+    private boolean reported;
+
+    // 読み飛ばした部分木をこの reader の分として数えてから、listener に渡す
+    private final ParseListener readerListener = new ParseListener() {
+        @Override
+        public void onItem(long nanos, long chars) {
+            listener.onItem(nanos, chars);
+        }
+
+        @Override
+        public void onSkip() {
+            ++skipped;
+            listener.onSkip();
+        }
+
+        @Override
+        public void onPhase(Phase phase, long nanos) {
+            listener.onPhase(phase, nanos);
+        }
+    };
+
+    public ListeningStreamReader(XMLStreamReader reader, ParseListener listener) {
+        super(reader);
+        this.listener = listener;
+    }
+
+    // listener が NONE の場合は包まずに返す
+    public static XMLStreamReader wrap(XMLStreamReader reader, ParseListener listener) {
+        return listener == ParseListener.NONE ? reader : new ListeningStreamReader(reader, listener);
+    }
+
+    // reader が ListeningStreamReader (を包んだもの) の場合は、その reader の読み飛ばしを数える listener を返す
+    public static ParseListener listenerOf(XMLStreamReader reader, ParseListener listener) {
+        for (var current = reader; current instanceof StreamReaderDelegate;
+             current = ((StreamReaderDelegate) current).getParent()) {
+            if (current instanceof ListeningStreamReader) {
+                return ((ListeningStreamReader) current).readerListener;
+            }
+        }
+        return listener;
+    }
+
+    public long getEvents() {
+        return events;
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        final var event = super.next();
+        ++events;
+        switch (event) {
+            case XMLStreamConstants.START_ELEMENT -> ++depth;
+            case XMLStreamConstants.END_ELEMENT -> {
+                // END_DOCUMENT では位置を返さない実装があるため、ルート要素の終了タグの位置を使う
+                if (--depth == 0) {
+                    chars = getLocation().getCharacterOffset();
+                }
+            }
+            case XMLStreamConstants.END_DOCUMENT -> report();
+        }
+        return event;
+    }
+
+    // take や Page の上限、購読の解除、エラーで途中でやめた場合も、そこまでに読んだ分を一度だけ渡す
+    @Override
+    public void close() throws XMLStreamException {
+        if (!reported) {
+            chars = getLocation().getCharacterOffset();
+            report();
+        }
+        super.close();
+    }
+
+    private void report() {
+        if (!reported) {
+            reported = true;
+            listener.onComplete(events, chars, skipped);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package github.sejour.harvestmoon.metrics;
+
+/**
+ * Receives what happened while parsing.
+ * Callbacks are invoked on the parsing threads, so an implementation shared by parallel parses has to be thread safe.
+ * {@link #NONE} is checked by identity and costs nothing on the hot path.
+ */
+public interface ParseListener {
+    ParseListener NONE = new ParseListener() {};
+
+    enum Phase {
+        // item の部分木を文字列にするまで (Parser のみ)
+        SERIALIZE,
+        // 文字列から DOM を構築し、子要素の XPath を評価するまで (Parser のみ)
+        EVALUATE,
+    }
+
+    // item を1件出力した。nanos は開始タグを読んでから Node を構築し終えるまで
+    // (Parser では EVALUATE の時間)、chars は item の入力の文字数 (バイト数ではない) で、分からない場合は -1
+    default void onItem(long nanos, long chars) {}
+
+    // item を含まない要素の部分木を読み飛ばした
+    default void onSkip() {}
+
+    default void onPhase(Phase phase, long nanos) {}
+
+    // 入力 (並列にパースする場合はチャンク) を最後まで読んだか、途中で読むのをやめた。
+    // events は読んだイベントの数、chars は読んだ入力の文字数で、分からない場合は -1。
+    // skipped はこの入力の中で読み飛ばした部分木の数
+    default void onComplete(long events, long chars, long skipped) {}
+}
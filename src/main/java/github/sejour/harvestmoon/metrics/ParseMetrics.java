@@ -0,0 +1,90 @@
+package github.sejour.harvestmoon.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Value;
+
+/**
+ * {@link ParseListener} that aggregates counters and histograms, for parses that may run concurrently.
+ * Throughput is measured from the creation of the instance to the latest {@link #snapshot()}.
+ */
+public class ParseMetrics implements ParseListener {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder chars = new LongAdder();
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final Histogram itemNanos = new Histogram();
+    private final Histogram itemChars = new Histogram();
+
+    public ParseMetrics() {
+        for (int i = 0; i < phaseNanos.length; ++i) {
+            phaseNanos[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void onItem(long nanos, long chars) {
+        itemNanos.record(nanos);
+        if (chars >= 0) {
+            itemChars.record(chars);
+        }
+    }
+
+    @Override
+    public void onSkip() {
+        skipped.increment();
+    }
+
+    @Override
+    public void onPhase(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    @Override
+    public void onComplete(long events, long chars, long skipped) {
+        // skipped は onSkip で数えている
+        this.events.add(events);
+        if (chars >= 0) {
+            this.chars.add(chars);
+        }
+    }
+
+    public Snapshot snapshot() {
+        final var phases = new long[phaseNanos.length];
+        for (int i = 0; i < phases.length; ++i) {
+            phases[i] = phaseNanos[i].sum();
+        }
+        return new Snapshot(System.nanoTime() - startNanos, skipped.sum(), events.sum(), chars.sum(), phases,
+                            itemNanos.snapshot(), itemChars.snapshot());
+    }
+
+    @Value
+    public static class Snapshot {
+        long elapsedNanos;
+        long skipped;
+        long events;
+        long chars;
+        long[] phaseNanos;
+        Histogram.Snapshot itemNanos;
+        Histogram.Snapshot itemChars;
+
+        public long getItems() {
+            return itemNanos.getCount();
+        }
+
+        public double itemsPerSecond() {
+            return elapsedNanos == 0 ? 0 : getItems() * 1e9 / elapsedNanos;
+        }
+
+        // 読み飛ばした部分木と item の合計に対する、読み飛ばした部分木の割合
+        public double skipRatio() {
+            final var total = skipped + getItems();
+            return total == 0 ? 0 : (double) skipped / total;
+        }
+
+        public long phaseNanos(Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+    }
+}
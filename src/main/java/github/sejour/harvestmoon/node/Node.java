@@ -8,4 +8,9 @@ public interface Node<P extends Path> {
     String text();
     String attribute(String name);
     List<Node<P>> find(P path);
+
+    // 大きなテキストをコピーせずに読むためのもの。実装によっては text() と同じ値を返す
+    default CharSequence textSequence() {
+        return text();
+    }
 }
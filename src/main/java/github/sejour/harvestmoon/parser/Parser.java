@@ -1,13 +1,60 @@
 package github.sejour.harvestmoon.parser;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import github.sejour.harvestmoon.exception.ParseException;
 import github.sejour.harvestmoon.node.Node;
 import github.sejour.harvestmoon.path.Path;
+import github.sejour.harvestmoon.util.ByteBufferInputStream;
+import github.sejour.harvestmoon.util.MappedFileInputStream;
+import github.sejour.harvestmoon.util.VirtualThreads;
 
+import io.reactivex.rxjava3.core.BackpressureStrategy;
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Observable;
 
 public interface Parser<P1 extends Path, P2 extends Path, R> {
     Observable<Node<P2>> parse(InputStream in, P1 itemRootPath, R nodeRequest) throws ParseException;
+
+    // 購読者の request 分だけ入力を読み進める。
+    // 既定では parse の結果を購読者が要求するまでバッファするため、入力を読み進める速さは抑えられない
+    default Flowable<Node<P2>> parseFlowable(InputStream in, P1 itemRootPath, R nodeRequest) throws ParseException {
+        return parse(in, itemRootPath, nodeRequest).toFlowable(BackpressureStrategy.BUFFER);
+    }
+
+    // ファイルは mmap して読み、ストリームの終了時に close する
+    default Observable<Node<P2>> parse(java.nio.file.Path file, P1 itemRootPath, R nodeRequest) throws ParseException {
+        return Observable.using(() -> new MappedFileInputStream(file),
+                                in -> parse(in, itemRootPath, nodeRequest),
+                                MappedFileInputStream::close);
+    }
+
+    default Flowable<Node<P2>> parseFlowable(java.nio.file.Path file, P1 itemRootPath, R nodeRequest) throws ParseException {
+        return Flowable.using(() -> new MappedFileInputStream(file),
+                              in -> parseFlowable(in, itemRootPath, nodeRequest),
+                              MappedFileInputStream::close);
+    }
+
+    default Observable<Node<P2>> parse(ByteBuffer buffer, P1 itemRootPath, R nodeRequest) throws ParseException {
+        return parse(new ByteBufferInputStream(buffer), itemRootPath, nodeRequest);
+    }
+
+    default Flowable<Node<P2>> parseFlowable(ByteBuffer buffer, P1 itemRootPath, R nodeRequest)
+            throws ParseException {
+        return parseFlowable(new ByteBufferInputStream(buffer), itemRootPath, nodeRequest);
+    }
+
+    // 仮想スレッド上で入力を読む。ブロックする入力を多数同時に読んでも、入力毎にプラットフォームスレッドを占有しない。
+    // 入力の先頭を読むのも仮想スレッドで行うため、設定の誤りも onError で通知される。
+    // 仮想スレッドを使えない実行環境では、購読時に UnsupportedOperationException を onError で通知する
+    default Observable<Node<P2>> parseOnVirtualThread(InputStream in, P1 itemRootPath, R nodeRequest) {
+        return Observable.defer(() -> Observable.defer(() -> parse(in, itemRootPath, nodeRequest))
+                                                .subscribeOn(VirtualThreads.scheduler()));
+    }
+
+    default Flowable<Node<P2>> parseFlowableOnVirtualThread(InputStream in, P1 itemRootPath, R nodeRequest) {
+        return Flowable.defer(() -> Flowable.defer(() -> parseFlowable(in, itemRootPath, nodeRequest))
+                                            .subscribeOn(VirtualThreads.scheduler()));
+    }
 }
@@ -0,0 +1,14 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder(toBuilder = true)
+public class Batching {
+    @Builder.Default
+    int maxItems = 1000;
+
+    // 1バッチの item を読むまでに進んだ入力の文字数の上限。0 の場合は制限しない
+    long maxChars;
+}
@@ -0,0 +1,88 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+/**
+ * {@link Node} over a node encoded by {@link NodeCodec}.
+ * Only absolute reads are made on the buffer, and the text is cached on first access.
+ */
+class BinaryNode implements Node<XPath> {
+    private static final String UNREAD = new String();
+
+    private final ByteBuffer bytes;
+    private final int start;
+    private final NodeCodec.Dictionary dictionary;
+
+    // 複数のスレッドから参照されても、同じ値を計算し直すだけなので同期はしない
+    private String text = UNREAD;
+
+    BinaryNode(ByteBuffer bytes, int start, NodeCodec.Dictionary dictionary) {
+        this.bytes = bytes;
+        this.start = start;
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public String text() {
+        var value = text;
+        if (value == UNREAD) {
+            value = NodeCodec.readRef(bytes, start, dictionary);
+            text = value;
+        }
+        return value;
+    }
+
+    @Override
+    public String attribute(String name) {
+        var position = NodeCodec.refEnd(bytes, start);
+        final var attributeCount = NodeCodec.readVarint(bytes, position);
+        position = NodeCodec.varintEnd(bytes, position);
+        for (int i = 0; i < attributeCount; ++i) {
+            final var valuePosition = NodeCodec.refEnd(bytes, position);
+            if (name.equals(NodeCodec.readRef(bytes, position, dictionary))) {
+                return NodeCodec.readRef(bytes, valuePosition, dictionary);
+            }
+            position = NodeCodec.refEnd(bytes, valuePosition);
+        }
+        return null;
+    }
+
+    @Override
+    public List<Node<XPath>> find(XPath path) {
+        var position = NodeCodec.refEnd(bytes, start);
+        final var attributeCount = NodeCodec.readVarint(bytes, position);
+        position = NodeCodec.varintEnd(bytes, position);
+        for (int i = 0; i < attributeCount; ++i) {
+            position = NodeCodec.refEnd(bytes, NodeCodec.refEnd(bytes, position));
+        }
+
+        final var groupCount = NodeCodec.readVarint(bytes, position);
+        position = NodeCodec.varintEnd(bytes, position);
+        for (int i = 0; i < groupCount; ++i) {
+            final var lengthPosition = NodeCodec.refEnd(bytes, position);
+            if (path.getExpression().equals(NodeCodec.readRef(bytes, position, dictionary))) {
+                return decodeChildren(lengthPosition + 4);
+            }
+            // 一致しない子要素の一覧は、長さを使って読み飛ばす
+            position = lengthPosition + 4 + bytes.getInt(lengthPosition);
+        }
+        return null;
+    }
+
+    private List<Node<XPath>> decodeChildren(int position) {
+        final var count = NodeCodec.readVarint(bytes, position);
+        position = NodeCodec.varintEnd(bytes, position);
+        final var nodes = ImmutableList.<Node<XPath>>builderWithExpectedSize(count);
+        for (int i = 0; i < count; ++i) {
+            nodes.add(new BinaryNode(bytes, position + 4, dictionary));
+            position += 4 + bytes.getInt(position);
+        }
+        return nodes.build();
+    }
+}
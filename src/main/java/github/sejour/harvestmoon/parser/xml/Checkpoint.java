@@ -0,0 +1,23 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+
+import lombok.Value;
+
+/**
+ * Position in a file of flat records from which {@link StreamParser#parseResumable} can continue.
+ * The parser seeks to {@code byteOffset} and resynchronizes on the next start tag of the item element, so the
+ * path from the document root to the items is rebuilt from {@code itemRootPath} instead of being saved.
+ */
+@Value
+public class Checkpoint {
+    ItemRootXPath itemRootPath;
+    // 最後に出力した item の終了タグの直後のバイト位置
+    long byteOffset;
+    // 次に出力する item の番号
+    long itemIndex;
+
+    public static Checkpoint start(ItemRootXPath itemRootPath) {
+        return new Checkpoint(itemRootPath, 0, 0);
+    }
+}
@@ -0,0 +1,43 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * Maps the items read from an {@link ItemChunkInputStream} back to their byte offsets in the file.
+ * The XML reader reads ahead of the items it returns, so the end offsets are queued by the stream and taken here
+ * one by one as the reader closes each item element.
+ */
+class CheckpointReader extends StreamReaderDelegate {
+    private final ItemChunkInputStream in;
+    private int depth;
+    private long itemEnd;
+
+    CheckpointReader(XMLStreamReader reader, ItemChunkInputStream in, long startOffset) {
+        super(reader);
+        this.in = in;
+        itemEnd = startOffset;
+    }
+
+    // 最後に終了タグを読んだ item の直後のバイト位置
+    long getItemEnd() {
+        return itemEnd;
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        final var event = super.next();
+        switch (event) {
+            case XMLStreamConstants.START_ELEMENT -> ++depth;
+            case XMLStreamConstants.END_ELEMENT -> {
+                // チャンクのルート要素の直下が item
+                if (--depth == 1) {
+                    itemEnd = in.pollItemEnd();
+                }
+            }
+        }
+        return event;
+    }
+}
@@ -0,0 +1,13 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import lombok.Value;
+
+@Value
+public class CheckpointedNode {
+    Node<XPath> node;
+    // この item の直後から再開するための Checkpoint
+    Checkpoint checkpoint;
+}
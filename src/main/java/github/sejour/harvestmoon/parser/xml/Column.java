@@ -0,0 +1,209 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.nio.CharBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamReader;
+
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import lombok.Value;
+
+/**
+ * Values of the nodes built for one request, stored as rows of offsets into a single char buffer.
+ * Each row holds the (start, end) of every requested attribute, of the text, and of the rows of every child
+ * request in the child columns. The nodes of one request never nest, so the text of a row and the rows of its
+ * children are always contiguous.
+ */
+class Column {
+    private final CompiledRequest request;
+    private final Column[] children;
+    private final int attributeCount;
+    private final int stride;
+
+    private final StringBuilder chars = new StringBuilder();
+    private int[] offsets;
+    private int count;
+    private boolean writing;
+
+    Column(CompiledRequest request) {
+        this.request = request;
+        final var childRequests = request.getChildren();
+        children = new Column[childRequests.size()];
+        for (int i = 0; i < children.length; ++i) {
+            children[i] = new Column(childRequests.get(i).getRequest());
+        }
+        attributeCount = request.getAttributeNames().size();
+        stride = 2 * (attributeCount + 1 + children.length);
+        offsets = new int[stride * 16];
+    }
+
+    CompiledRequest getRequest() {
+        return request;
+    }
+
+    Column getChild(int index) {
+        return children[index];
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int open(XMLStreamReader reader) {
+        // union の各パスが入れ子の要素に一致すると、行のテキストが連続しなくなる
+        if (writing) {
+            throw new IllegalStateException("nested matches of one request are not supported in columnar output");
+        }
+        writing = true;
+
+        final var row = count++;
+        if (offsets.length < count * stride) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+
+        var offset = row * stride;
+        for (int i = 0; i < attributeCount; ++i) {
+            final var value = request.attributeValue(reader, i);
+            offsets[offset++] = chars.length();
+            // DOM の Element#getAttribute に合わせて、存在しない属性は空文字とする
+            if (value != null) {
+                chars.append(value);
+            }
+            offsets[offset++] = chars.length();
+        }
+        offsets[offset++] = chars.length();
+        offsets[offset++] = chars.length();
+        for (final var child : children) {
+            offsets[offset++] = child.count;
+            offsets[offset++] = child.count;
+        }
+        return row;
+    }
+
+    void appendText(CharSequence text, int start, int end) {
+        chars.append(text, start, end);
+    }
+
+    // 書き込み中の行のテキストの長さ
+    int textLength(int row) {
+        return chars.length() - offsets[row * stride + 2 * attributeCount];
+    }
+
+    void close(int row) {
+        writing = false;
+        var offset = row * stride + 2 * attributeCount;
+        offsets[offset + 1] = chars.length();
+        offset += 2;
+        for (final var child : children) {
+            offsets[offset + 1] = child.count;
+            offset += 2;
+        }
+    }
+
+    // 書き込みが終わった後に、余分な領域を切り詰める
+    Column trim() {
+        chars.trimToSize();
+        offsets = Arrays.copyOf(offsets, count * stride);
+        for (final var child : children) {
+            child.trim();
+        }
+        return this;
+    }
+
+    Node<XPath> row(int row) {
+        return new Row(this, row);
+    }
+
+    String text(int row) {
+        if (!request.isWantText()) {
+            return null;
+        }
+        final var offset = row * stride + 2 * attributeCount;
+        return chars.substring(offsets[offset], offsets[offset + 1]);
+    }
+
+    // 値をコピーせずに参照する
+    CharSequence textSequence(int row) {
+        if (!request.isWantText()) {
+            return null;
+        }
+        final var offset = row * stride + 2 * attributeCount;
+        return CharBuffer.wrap(chars, offsets[offset], offsets[offset + 1]);
+    }
+
+    String attribute(int row, String name) {
+        final var index = request.getAttributeNames().indexOf(name);
+        if (index < 0) {
+            return null;
+        }
+        final var offset = row * stride + 2 * index;
+        return chars.substring(offsets[offset], offsets[offset + 1]);
+    }
+
+    List<Node<XPath>> find(int row, XPath path) {
+        final var childRequests = request.getChildren();
+        for (int i = 0; i < childRequests.size(); ++i) {
+            if (childRequests.get(i).getKey().equals(path)) {
+                final var offset = row * stride + 2 * (attributeCount + 1 + i);
+                return new Rows(children[i], offsets[offset], offsets[offset + 1]);
+            }
+        }
+        return null;
+    }
+
+    // 1行分の値を参照するだけの Node
+    @Value
+    private static class Row implements Node<XPath> {
+        Column column;
+        int row;
+
+        @Override
+        public String text() {
+            return column.text(row);
+        }
+
+        @Override
+        public CharSequence textSequence() {
+            return column.textSequence(row);
+        }
+
+        @Override
+        public String attribute(String name) {
+            return column.attribute(row, name);
+        }
+
+        @Override
+        public List<Node<XPath>> find(XPath path) {
+            return column.find(row, path);
+        }
+    }
+
+    private static class Rows extends AbstractList<Node<XPath>> {
+        private final Column column;
+        private final int start;
+        private final int end;
+
+        Rows(Column column, int start, int end) {
+            this.column = column;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public Node<XPath> get(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            return column.row(start + index);
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.util.AbstractList;
+
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+/**
+ * Items parsed by {@link StreamParser#parseColumnar}.
+ * The values of every item are held in per-request columns, and each element is a flyweight {@link Node} created on
+ * access that reads one row of them.
+ */
+public class ColumnarBatch extends AbstractList<Node<XPath>> {
+    private final Column items;
+
+    ColumnarBatch(Column items) {
+        this.items = items;
+    }
+
+    @Override
+    public Node<XPath> get(int index) {
+        if (index < 0 || index >= items.getCount()) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return items.row(index);
+    }
+
+    @Override
+    public int size() {
+        return items.getCount();
+    }
+}
@@ -0,0 +1,13 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import github.sejour.harvestmoon.path.xml.PathIterator;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import lombok.Value;
+
+@Value
+class CompiledChildRequest {
+    XPath key;
+    PathIterator iterator;
+    CompiledRequest request;
+}
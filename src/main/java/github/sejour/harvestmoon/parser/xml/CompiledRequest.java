@@ -0,0 +1,131 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+import static github.sejour.harvestmoon.util.StreamUtils.safeStream;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+import github.sejour.harvestmoon.path.xml.PathIterator;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import lombok.Value;
+
+@Value
+class CompiledRequest {
+    private static final int CACHE_SIZE = 1024;
+    // CompiledRequest は不変なので、Parser やスレッドをまたいで共有する
+    private static final Cache<CacheKey, CompiledRequest> CACHE = CacheBuilder.newBuilder()
+                                                                             .maximumSize(CACHE_SIZE)
+                                                                             .build();
+
+    // text() で選択された要素の Node。直下のテキストだけを持つ
+    static final CompiledRequest DIRECT_TEXT = new CompiledRequest(true, true, List.of(), List.of(), List.of());
+
+    boolean wantText;
+    boolean directText;
+    List<String> attributeNames;
+    // attributeNames の接頭辞を解決したもの。接頭辞のない属性名は名前空間を持たない
+    List<QName> attributeQNames;
+    List<CompiledChildRequest> children;
+
+    // 最近使われた item root path と Request の組のものを再利用する。
+    // 呼び出し側が後から Request の Set や Map を変更しても古い結果を返さないよう、不変なコピーをキーにする
+    static CompiledRequest compile(ItemRootXPath itemRootPath, Request request) {
+        final var snapshot = RequestSnapshot.of(request);
+        final var key = new CacheKey(itemRootPath, snapshot);
+        var compiled = CACHE.getIfPresent(key);
+        if (compiled == null) {
+            compiled = PathIterator.selectsText(itemRootPath.getExpression())
+                       ? DIRECT_TEXT : compile(snapshot, itemRootPath.getNamespaces());
+            CACHE.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    @Value
+    private static class CacheKey {
+        ItemRootXPath itemRootPath;
+        RequestSnapshot request;
+    }
+
+    // Request の不変なコピー。null の Set や Map は空として扱う
+    @Value
+    private static class RequestSnapshot {
+        private static final RequestSnapshot EMPTY = new RequestSnapshot(false, ImmutableSet.of(), ImmutableMap.of());
+
+        boolean wantText;
+        ImmutableSet<String> attributeRequests;
+        ImmutableMap<XPath, RequestSnapshot> childRequests;
+
+        static RequestSnapshot of(Request request) {
+            // text() を選択する子の Request は使われないので null でもよい
+            if (request == null) {
+                return EMPTY;
+            }
+            final var childRequests = ImmutableMap.<XPath, RequestSnapshot>builder();
+            if (request.getChildRequests() != null) {
+                request.getChildRequests().forEach((path, child) -> childRequests.put(path, of(child)));
+            }
+            return new RequestSnapshot(request.isWantText(),
+                                       safeStream(request.getAttributeRequests()).collect(toImmutableSet()),
+                                       childRequests.build());
+        }
+    }
+
+    private static CompiledRequest compile(RequestSnapshot request, Map<String, String> namespaces) {
+        final var attributeNames = request.getAttributeRequests().asList();
+        final var attributeQNames = attributeNames
+                .stream()
+                .map(name -> QName.valueOf(PathIterator.resolveName(name, namespaces, false)))
+                .collect(toImmutableList());
+
+        final var children = request
+                .getChildRequests()
+                .entrySet()
+                .stream()
+                .map(req -> {
+                    final var expression = req.getKey().getExpression();
+                    return new CompiledChildRequest(req.getKey(),
+                                                    PathIterator.compile(expression, namespaces),
+                                                    PathIterator.selectsText(expression)
+                                                    ? DIRECT_TEXT : compile(req.getValue(), namespaces));
+                })
+                .collect(toImmutableList());
+
+        return new CompiledRequest(request.isWantText(), false, attributeNames, attributeQNames, children);
+    }
+
+    // 子孫の Request のいずれかの XPath が、入れ子の要素に一致しうる union の場合は true を返す
+    boolean selectsNested() {
+        for (final var child : children) {
+            if (child.getIterator().isNested() || child.getRequest().selectsNested()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // index 番目に要求された属性の値。存在しない場合は null を返す
+    String attributeValue(XMLStreamReader reader, int index) {
+        final var name = attributeQNames.get(index);
+        final var attributeCount = reader.getAttributeCount();
+        for (int i = 0; i < attributeCount; ++i) {
+            if (PathIterator.matchName(name.getNamespaceURI(), name.getLocalPart(),
+                                       reader.getAttributeNamespace(i), reader.getAttributeLocalName(i))) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+}
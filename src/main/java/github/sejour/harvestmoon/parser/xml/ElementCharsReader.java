@@ -0,0 +1,47 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+/**
+ * Records the character offsets of the open elements, so that the input size of the element closed last can be read
+ * after another component has consumed it.
+ * As in {@link ItemReader}, the size is counted from the end of the start tag to the end of the end tag.
+ */
+class ElementCharsReader extends StreamReaderDelegate {
+    private long[] starts = new long[16];
+    private int depth;
+    private long lastElementChars = -1;
+
+    ElementCharsReader(XMLStreamReader reader) {
+        super(reader);
+    }
+
+    // reader が ElementCharsReader でない場合は -1 を返す
+    static long lastElementChars(XMLStreamReader reader) {
+        return reader instanceof ElementCharsReader ? ((ElementCharsReader) reader).lastElementChars : -1;
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        final var event = super.next();
+        switch (event) {
+            case XMLStreamConstants.START_ELEMENT -> {
+                if (depth == starts.length) {
+                    starts = Arrays.copyOf(starts, depth * 2);
+                }
+                starts[depth++] = getLocation().getCharacterOffset();
+            }
+            case XMLStreamConstants.END_ELEMENT -> {
+                final var start = starts[--depth];
+                final var end = getLocation().getCharacterOffset();
+                lastElementChars = start < 0 || end < 0 ? -1 : end - start;
+            }
+        }
+        return event;
+    }
+}
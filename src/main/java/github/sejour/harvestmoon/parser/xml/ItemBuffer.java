@@ -0,0 +1,126 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.util.Arrays;
+
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Records the subtree of an item as a compact sequence of tokens in a single char buffer, so that {@link LazyNode}
+ * can decode it later.
+ * <pre>
+ * START: 'S' skip(int) namespaceURI localName attributeCount(int) (namespaceURI localName value)*
+ * TEXT:  'T' text
+ * END:   'E'
+ * </pre>
+ * An int is stored in two chars and a string is its length (int) followed by the chars.
+ * skip is the position just after the END token of the element.
+ * Text is stored as the trimmed runs between tags, as the other parsers build {@code text()}.
+ */
+class ItemBuffer {
+    static final char START = 'S';
+    static final char TEXT = 'T';
+    static final char END = 'E';
+
+    private final StringBuilder tokens = new StringBuilder();
+    private int[] openStarts = new int[16];
+    private int depth;
+
+    void startElement(XMLStreamReader reader) {
+        if (depth == openStarts.length) {
+            openStarts = Arrays.copyOf(openStarts, depth * 2);
+        }
+        openStarts[depth++] = tokens.length();
+
+        tokens.append(START);
+        appendInt(0);
+        appendString(reader.getNamespaceURI());
+        appendString(reader.getLocalName());
+        final var attributeCount = reader.getAttributeCount();
+        appendInt(attributeCount);
+        for (int i = 0; i < attributeCount; ++i) {
+            appendString(reader.getAttributeNamespace(i));
+            appendString(reader.getAttributeLocalName(i));
+            appendString(reader.getAttributeValue(i));
+        }
+    }
+
+    void text(CharSequence text, int start, int end) {
+        tokens.append(TEXT);
+        appendInt(end - start);
+        tokens.append(text, start, end);
+    }
+
+    void endElement() {
+        tokens.append(END);
+        final var start = openStarts[--depth];
+        final var skip = tokens.length();
+        tokens.setCharAt(start + 1, (char) (skip >>> 16));
+        tokens.setCharAt(start + 2, (char) skip);
+    }
+
+    String toTokens() {
+        return tokens.toString();
+    }
+
+    // 確保済みの領域を残したまま、次の item の記録に使えるようにする
+    ItemBuffer reset() {
+        tokens.setLength(0);
+        depth = 0;
+        return this;
+    }
+
+    private void appendInt(int value) {
+        tokens.append((char) (value >>> 16)).append((char) value);
+    }
+
+    private void appendString(String value) {
+        if (value == null) {
+            appendInt(0);
+            return;
+        }
+        appendInt(value.length());
+        tokens.append(value);
+    }
+
+    static int readInt(String tokens, int position) {
+        return tokens.charAt(position) << 16 | tokens.charAt(position + 1);
+    }
+
+    // START token の位置から、その要素の END token の直後の位置を返す
+    static int skip(String tokens, int start) {
+        return readInt(tokens, start + 1);
+    }
+
+    static int namespaceURIPosition(int start) {
+        return start + 3;
+    }
+
+    static int localNamePosition(String tokens, int start) {
+        return stringEnd(tokens, namespaceURIPosition(start));
+    }
+
+    // START token の位置から、その要素の最初の子 token の位置を返す
+    static int contentStart(String tokens, int start) {
+        final var attributesPosition = stringEnd(tokens, localNamePosition(tokens, start));
+        final var attributeCount = readInt(tokens, attributesPosition);
+        var position = attributesPosition + 2;
+        for (int i = 0; i < attributeCount * 3; ++i) {
+            position = stringEnd(tokens, position);
+        }
+        return position;
+    }
+
+    static String readString(String tokens, int position) {
+        final var start = position + 2;
+        return tokens.substring(start, start + readInt(tokens, position));
+    }
+
+    static int stringEnd(String tokens, int position) {
+        return position + 2 + readInt(tokens, position);
+    }
+
+    static boolean stringEquals(String tokens, int position, String value) {
+        return readInt(tokens, position) == value.length()
+               && tokens.regionMatches(position + 2, value, 0, value.length());
+    }
+}
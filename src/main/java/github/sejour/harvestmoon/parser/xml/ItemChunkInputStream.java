@@ -0,0 +1,138 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Reads the items whose start tag begins in [start, end) of a file, wrapped in the given header and footer.
+ * Items are found by scanning the bytes with {@link ItemTagScanner}.
+ */
+class ItemChunkInputStream extends InputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long end;
+    private final byte[] itemTag;
+    private final byte[] footer;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private long bufferStart;
+    private long nextReadPosition;
+
+    private byte[] pending;
+    private int pendingPosition;
+    private boolean finished;
+
+    private final ItemTagScanner scanner;
+
+    // null でない場合は、読み終えた item の終了タグの直後のバイト位置を記録する
+    private ArrayDeque<Long> itemEnds;
+
+    ItemChunkInputStream(FileChannel channel, long start, long end, byte[] itemTag, byte[] header, byte[] footer) {
+        this.channel = channel;
+        this.end = end;
+        this.itemTag = itemTag;
+        this.footer = footer;
+        scanner = new ItemTagScanner(itemTag);
+        bufferStart = start;
+        nextReadPosition = start;
+        buffer.flip();
+        pending = header;
+    }
+
+    ItemChunkInputStream trackItemEnds() {
+        itemEnds = new ArrayDeque<>();
+        return this;
+    }
+
+    // 記録した位置を古い順に取り出す
+    long pollItemEnd() {
+        return itemEnds.remove();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final var b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        var n = 0;
+        while (n < len) {
+            if (pending != null) {
+                final var count = Math.min(len - n, pending.length - pendingPosition);
+                System.arraycopy(pending, pendingPosition, b, off + n, count);
+                n += count;
+                pendingPosition += count;
+                if (pendingPosition == pending.length) {
+                    pending = null;
+                    pendingPosition = 0;
+                }
+                continue;
+            }
+            if (finished) {
+                break;
+            }
+            if (!scanner.isInItem()) {
+                if (!seekItem()) {
+                    pending = footer;
+                    finished = true;
+                }
+                continue;
+            }
+
+            final var c = nextByte();
+            if (c < 0) {
+                throw new IOException("unexpected end of file in item");
+            }
+            b[off + n++] = (byte) c;
+            scanner.consume(c);
+            if (!scanner.isInItem() && itemEnds != null) {
+                itemEnds.add(bufferStart + buffer.position());
+            }
+        }
+
+        return n == 0 ? -1 : n;
+    }
+
+    private boolean seekItem() throws IOException {
+        while (true) {
+            final var position = bufferStart + buffer.position();
+            if (scanner.getMatched() == 0 && position >= end) {
+                return false;
+            }
+
+            final var c = nextByte();
+            if (c < 0) {
+                return false;
+            }
+            if (scanner.seek(c)) {
+                buffer.position(buffer.position() - 1);
+                pending = itemTag;
+                return true;
+            }
+        }
+    }
+
+    private int nextByte() throws IOException {
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            bufferStart = nextReadPosition;
+            final var read = channel.read(buffer, nextReadPosition);
+            buffer.flip();
+            if (read <= 0) {
+                return -1;
+            }
+            nextReadPosition += read;
+        }
+        return buffer.get() & 0xff;
+    }
+}
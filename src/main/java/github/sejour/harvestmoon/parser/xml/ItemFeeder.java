@@ -0,0 +1,140 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamException;
+
+import github.sejour.harvestmoon.exception.ParseException;
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+import github.sejour.harvestmoon.path.xml.PathIterator;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+/**
+ * Push style parser for a document that arrives as chunks of bytes, so that a slow feed does not hold a thread
+ * while waiting for input.
+ * The bytes are split into items with {@link ItemTagScanner} as in chunked parsing, and the items completed by each
+ * chunk are parsed from memory, which never blocks. The same restrictions as chunked parsing apply: the items must be
+ * flat records found by the name of the last element of the item root path.
+ */
+public class ItemFeeder {
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final StreamParser parser;
+    private final ItemRootXPath itemRootPath;
+    private final PathIterator leaf;
+    private final PathIterator chunkIterator;
+    private final CompiledRequest request;
+    private final ParseOptions options;
+
+    // envelope を読むまでは、ルート要素の開始タグの終わりを探す
+    private ItemTagScanner scanner = new ItemTagScanner(null);
+    private StreamParser.ChunkEnvelope envelope;
+
+    // envelope を読むまでは文書の先頭、その後は読み終えていない item のバイト列
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int length;
+    // bytes のうち、終了タグまで読んだ item の末尾
+    private int completed;
+
+    ItemFeeder(StreamParser parser, ItemRootXPath itemRootPath, PathIterator leaf, CompiledRequest request,
+               ParseOptions options) {
+        this.parser = parser;
+        this.itemRootPath = itemRootPath;
+        this.leaf = leaf;
+        this.request = request;
+        this.options = options;
+        chunkIterator = PathIterator.builder().child(leaf).build();
+    }
+
+    // buffer の残りを全て読み、終了タグまで読めた item を返す
+    public List<Node<XPath>> feed(ByteBuffer buffer) throws ParseException {
+        while (buffer.hasRemaining()) {
+            final var c = buffer.get() & 0xff;
+            if (envelope == null) {
+                append(c);
+                scanner.consume(c);
+                if (scanner.getDepth() == 1) {
+                    readEnvelope();
+                }
+                continue;
+            }
+
+            if (!scanner.isInItem()) {
+                if (!scanner.seek(c)) {
+                    continue;
+                }
+                for (final var b : envelope.getItemTag()) {
+                    append(b);
+                }
+            }
+            append(c);
+            scanner.consume(c);
+            if (!scanner.isInItem()) {
+                completed = length;
+            }
+        }
+
+        return completed == 0 ? Collections.emptyList() : parseCompleted();
+    }
+
+    // 入力の終わりに呼ぶ。item の途中で終わっている場合は ParseException を投げる
+    public void finish() throws ParseException {
+        if (envelope != null && scanner.isInItem()) {
+            throw new ParseException("input ended in the middle of an item");
+        }
+    }
+
+    private void readEnvelope() throws ParseException {
+        try {
+            envelope = parser.readEnvelope(new ByteArrayInputStream(bytes, 0, length),
+                                           leaf.getNamespaceURI(), leaf.getLocalName());
+        } catch (XMLStreamException e) {
+            throw new ParseException("failed to read the root element", e);
+        }
+        scanner = new ItemTagScanner(envelope.getItemTag());
+        length = 0;
+    }
+
+    private List<Node<XPath>> parseCompleted() throws ParseException {
+        final var in = new SequenceInputStream(
+                Collections.enumeration(List.of(new ByteArrayInputStream(envelope.getHeader()),
+                                                new ByteArrayInputStream(bytes, 0, completed),
+                                                new ByteArrayInputStream(envelope.getFooter()))));
+        final var nodes = new ArrayList<Node<XPath>>();
+        try {
+            final var reader = parser.createChunkReader(in);
+            try {
+                final var itemReader = parser.createItemReader(reader, itemRootPath, chunkIterator, request,
+                                                               options);
+                for (var node = itemReader.next(); node != null; node = itemReader.next()) {
+                    nodes.add(node);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new ParseException("failed to parse items", e);
+        }
+
+        // 読み終えていない item を先頭に詰める
+        System.arraycopy(bytes, completed, bytes, 0, length - completed);
+        length -= completed;
+        completed = 0;
+        return nodes;
+    }
+
+    private void append(int b) {
+        if (length == bytes.length) {
+            final var grown = new byte[bytes.length * 2];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+        bytes[length++] = (byte) b;
+    }
+}
@@ -0,0 +1,41 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.util.Map;
+import java.util.function.Predicate;
+
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.PathIterator;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Condition on the items evaluated by {@link StreamParser} while reading, so that rejected items are not built or
+ * handed to the subscriber. {@link ParseOptions#getPage()} counts the items that passed the filter.
+ */
+@Value
+@Builder(toBuilder = true)
+public class ItemFilter {
+    public static final ItemFilter ALL = builder().build();
+
+    // item root の属性の条件。パスの述語と同じ書式で、接頭辞は item root path の名前空間で解決する
+    // (例: "@type='A' and not(@hidden)")。開始タグで評価し、一致しない item は Node を構築せずに読み飛ばす
+    String attributeCondition;
+
+    // 構築した Node の条件。子要素のテキストなども参照できる。
+    // lazy の場合は、参照したフィールドだけをデコードして評価する
+    Predicate<Node<XPath>> predicate;
+
+    // 任意の要素名の1ステップとしてコンパイルし、開始タグに一致した場合に MATCHED を返す iterator にする
+    PathIterator compileCondition(Map<String, String> namespaces) {
+        if (attributeCondition == null) {
+            return null;
+        }
+        final var condition = PathIterator.compile("*[" + attributeCondition + ']', namespaces);
+        if (condition.isPositional() || condition.getChild() != PathIterator.MATCHED) {
+            throw new RuntimeException("item filter must be a condition on attributes: " + attributeCondition);
+        }
+        return condition;
+    }
+}
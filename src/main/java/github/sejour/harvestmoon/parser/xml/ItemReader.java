@@ -0,0 +1,598 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import static github.sejour.harvestmoon.path.xml.PathIterator.MATCHED;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import github.sejour.harvestmoon.metrics.ListeningStreamReader;
+import github.sejour.harvestmoon.metrics.ParseListener;
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.node.ParsedNode;
+import github.sejour.harvestmoon.path.xml.PathIterator;
+import github.sejour.harvestmoon.path.xml.PositionCounter;
+import github.sejour.harvestmoon.path.xml.XPath;
+import github.sejour.harvestmoon.path.xml.XPathStreamNavigator;
+
+import lombok.Value;
+
+/**
+ * Finds the items of one or more queries and builds their {@link Node}s directly from the stream events,
+ * evaluating every item root path and child request in a single pass.
+ * Items are returned in the order their END_ELEMENT is read, so an item nested in an item of another query comes
+ * first. Each alternative of a {@link PathIterator#isNested() nested} union is followed like a separate query, but an
+ * element is matched only once and the items of one query are returned in document order.
+ */
+class ItemReader {
+    // これより大きなテキストのバッファは、次の item のために残さない
+    private static final int MAX_POOLED_TEXT_CAPACITY = 64 * 1024;
+
+    private final XMLStreamReader reader;
+    private final List<CompiledRequest> requests;
+    private final ParseOptions options;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+    private final Deque<NodeBuilder> completed = new ArrayDeque<>();
+    private final StringBuilder textRun = new StringBuilder();
+    // 1回のパースの中で使い回すもの。item 毎には出力する値だけを確保する
+    private final Deque<ArrayList<Cursor>> cursorListPool = new ArrayDeque<>();
+    private final Deque<StringBuilder> textPool = new ArrayDeque<>();
+    private final Deque<ItemBuffer> bufferPool = new ArrayDeque<>();
+
+    private int queryIndex = -1;
+    // null でない場合は、item を列に書き込む
+    private Column columns;
+    // 次のバッチのリストを前回と同じ大きさで確保する
+    private int lastBatchSize = 16;
+    private ParseListener listener = ParseListener.NONE;
+    // options の page の残り
+    private long itemsToSkip;
+    private long itemsLeft;
+    // item root の開始タグで評価する条件と、構築した Node で評価する条件。null の場合は全ての item を出力する
+    private PathIterator condition;
+    private Predicate<Node<XPath>> predicate;
+
+    ItemReader(XMLStreamReader reader, List<PathIterator> itemRootIterators, List<CompiledRequest> requests,
+               ParseOptions options) {
+        this.reader = reader;
+        this.requests = requests;
+        this.options = options;
+        itemsToSkip = options.getPage().getOffset();
+        itemsLeft = options.getPage().getLimit();
+
+        final var cursors = new ArrayList<Cursor>(itemRootIterators.size());
+        for (int i = 0; i < itemRootIterators.size(); ++i) {
+            addPathCursors(cursors, itemRootIterators.get(i), i, null);
+        }
+        frames.push(new Frame(cursors, Collections.emptyList(), Collections.emptyList(), Collections.emptyList()));
+    }
+
+    ItemReader(XMLStreamReader reader, List<PathIterator> itemRootIterators, List<CompiledRequest> requests) {
+        this(reader, itemRootIterators, requests, ParseOptions.DEFAULT);
+    }
+
+    ItemReader(XMLStreamReader reader, PathIterator itemRootIterator, CompiledRequest request,
+               ParseOptions options) {
+        this(reader, List.of(itemRootIterator), List.of(request), options);
+    }
+
+    ItemReader(XMLStreamReader reader, PathIterator itemRootIterator, CompiledRequest request) {
+        this(reader, itemRootIterator, request, ParseOptions.DEFAULT);
+    }
+
+    // item を ColumnarBatch にまとめて読むようにする。クエリが1つの場合のみ使える
+    ItemReader columnar() {
+        columns = new Column(requests.get(0));
+        return this;
+    }
+
+    // item 毎の時間と文字数、読み飛ばした部分木を listener に渡す
+    ItemReader listen(ParseListener listener) {
+        this.listener = ListeningStreamReader.listenerOf(reader, listener);
+        return this;
+    }
+
+    ItemReader filter(ItemFilter filter, Map<String, String> namespaces) {
+        condition = filter.compileCondition(namespaces);
+        predicate = filter.getPredicate();
+        return this;
+    }
+
+    XMLStreamReader getReader() {
+        return reader;
+    }
+
+    // 直前に next が返した item のクエリの番号
+    int getQueryIndex() {
+        return queryIndex;
+    }
+
+    // 次の item を返す。文書の終わりに達した場合は null を返す
+    Node<XPath> next() throws XMLStreamException {
+        while (itemsLeft != 0) {
+            final var builder = nextCompleted();
+            if (builder == null) {
+                return null;
+            }
+
+            final var node = builder.build();
+            if (predicate != null && !predicate.test(node)) {
+                continue;
+            }
+            // predicate がない場合は、開始タグで既に読み飛ばしている
+            if (itemsToSkip > 0) {
+                --itemsToSkip;
+                continue;
+            }
+
+            queryIndex = builder.queryIndex;
+            --itemsLeft;
+            if (listener != ParseListener.NONE) {
+                final var endChars = builder.endChars;
+                final var chars = builder.startChars < 0 || endChars < 0 ? -1 : endChars - builder.startChars;
+                listener.onItem(System.nanoTime() - builder.startNanos, chars);
+            }
+            return node;
+        }
+        return null;
+    }
+
+    // 終了タグまで読んだ次の item を返す。文書の終わりに達した場合は null を返す
+    private NodeBuilder nextCompleted() throws XMLStreamException {
+        while (completed.isEmpty()) {
+            if (!reader.hasNext()) {
+                return null;
+            }
+
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    startElement();
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    final var current = frames.element();
+                    if (!current.textOwners.isEmpty() || !current.recorders.isEmpty()) {
+                        textRun.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    final var frame = frames.pop();
+                    flushText(frame);
+                    for (final var recorder : frame.recorders) {
+                        recorder.buffer.endElement();
+                    }
+                    complete(frame.opened);
+                    releaseCursorList(frame.cursors);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return completed.poll();
+    }
+
+    // batching の上限まで item を読んで返す。文書の終わりに達した場合は null を返す
+    List<Node<XPath>> nextBatch(Batching batching) throws XMLStreamException {
+        final var nodes = new ArrayList<Node<XPath>>(lastBatchSize);
+        return readBatch(batching, nodes) == 0 ? null : nodes;
+    }
+
+    ColumnarBatch nextColumnarBatch(Batching batching) throws XMLStreamException {
+        if (readBatch(batching, null) == 0) {
+            return null;
+        }
+
+        // item の終了タグを読んだ直後なので、書き込み中の行は残っていない
+        final var batch = new ColumnarBatch(columns.trim());
+        columns = new Column(requests.get(0));
+        return batch;
+    }
+
+    private int readBatch(Batching batching, List<Node<XPath>> nodes) throws XMLStreamException {
+        final var maxChars = batching.getMaxChars();
+        final var startOffset = maxChars > 0 ? reader.getLocation().getCharacterOffset() : -1;
+
+        var count = 0;
+        while (count < batching.getMaxItems()) {
+            final var node = next();
+            if (node == null) {
+                break;
+            }
+            if (nodes != null) {
+                nodes.add(node);
+            }
+            ++count;
+
+            // 文字の位置を返さない実装では件数だけで区切る
+            if (startOffset >= 0 && reader.getLocation().getCharacterOffset() - startOffset >= maxChars) {
+                break;
+            }
+        }
+        if (count > 0) {
+            lastBatchSize = count;
+        }
+        return count;
+    }
+
+    private void startElement() throws XMLStreamException {
+        final var frame = frames.element();
+        flushText(frame);
+        for (final var recorder : frame.recorders) {
+            recorder.buffer.startElement(reader);
+        }
+
+        final var nextCursors = acquireCursorList();
+        var nextTextOwners = inheritTextOwners(frame.textOwners);
+        var nextRecorders = frame.recorders;
+        List<NodeBuilder> opened = Collections.emptyList();
+        List<Cursor> matchedAlternatives = Collections.emptyList();
+        for (final var cursor : frame.cursors) {
+            final var nextIterator = cursor.iterator.next(reader, cursor.counter);
+            if (nextIterator == null) {
+                continue;
+            }
+            if (nextIterator != MATCHED) {
+                nextCursors.add(new Cursor(nextIterator, cursor.index, cursor.owner, cursor.alternative));
+                continue;
+            }
+            // union の複数の選択肢が同じ要素に一致しても、Node は1つだけ作る
+            if (cursor.alternative) {
+                if (containsQuery(matchedAlternatives, cursor)) {
+                    continue;
+                }
+                if (matchedAlternatives.isEmpty()) {
+                    matchedAlternatives = new ArrayList<>();
+                }
+                matchedAlternatives.add(cursor);
+            }
+            if (cursor.owner == null && condition != null && condition.next(reader) != MATCHED) {
+                continue;
+            }
+            // 同じクエリの item は開始タグの順に出力するので、開始タグの順に数えて読み飛ばせる
+            if (cursor.owner == null && itemsToSkip > 0 && predicate == null) {
+                --itemsToSkip;
+                continue;
+            }
+
+            NodeBuilder builder;
+            if (cursor.owner == null && options.isLazy()) {
+                builder = new NodeBuilder(requests.get(cursor.index), cursor.index);
+                builder.buffer.startElement(reader);
+                nextRecorders = new ArrayList<>(nextRecorders);
+                nextRecorders.add(builder);
+            } else if (cursor.owner == null && columns != null) {
+                builder = new NodeBuilder(columns, reader, cursor.index);
+            } else if (cursor.owner == null) {
+                builder = new NodeBuilder(requests.get(cursor.index), reader, cursor.index);
+            } else if (cursor.owner.column != null) {
+                builder = new NodeBuilder(cursor.owner.column.getChild(cursor.index), reader, -1);
+            } else {
+                final var childRequest = cursor.owner.request.getChildren().get(cursor.index);
+                builder = new NodeBuilder(childRequest.getRequest(), reader, -1);
+                cursor.owner.children.get(cursor.index).add(builder);
+            }
+            if (cursor.owner == null && cursor.alternative) {
+                builder.enclosing = openItem(cursor.index);
+            }
+            if (cursor.owner == null && listener != ParseListener.NONE) {
+                builder.startNanos = System.nanoTime();
+                builder.startChars = reader.getLocation().getCharacterOffset();
+            }
+            builder.addCursors(nextCursors);
+            if (builder.wantsText()) {
+                nextTextOwners = new ArrayList<>(nextTextOwners);
+                nextTextOwners.add(builder);
+            }
+            if (opened.isEmpty()) {
+                opened = new ArrayList<>();
+            }
+            opened.add(builder);
+        }
+
+        if (nextCursors.isEmpty() && nextTextOwners.isEmpty() && nextRecorders.isEmpty()) {
+            XPathStreamNavigator.skipElement(reader);
+            if (opened.isEmpty()) {
+                listener.onSkip();
+            }
+            complete(opened);
+            cursorListPool.push(nextCursors);
+            return;
+        }
+        frames.push(new Frame(nextCursors, nextTextOwners, nextRecorders, opened));
+    }
+
+    // 入れ子の要素に一致しうる union は、選択肢毎に別のクエリのように探す
+    private static void addPathCursors(List<Cursor> cursors, PathIterator iterator, int index, NodeBuilder owner) {
+        if (!iterator.isNested()) {
+            cursors.add(new Cursor(iterator, index, owner, false));
+            return;
+        }
+        for (final var alternative : iterator.getAlternatives()) {
+            cursors.add(new Cursor(alternative, index, owner, true));
+        }
+    }
+
+    private static boolean containsQuery(List<Cursor> cursors, Cursor cursor) {
+        for (final var other : cursors) {
+            if (other.index == cursor.index && other.owner == cursor.owner) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 読んでいる要素の祖先のうち、index 番目のクエリの item で最も内側のもの。ない場合は null を返す
+    private NodeBuilder openItem(int index) {
+        for (final var frame : frames) {
+            for (final var builder : frame.opened) {
+                if (builder.queryIndex == index) {
+                    return builder;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ArrayList<Cursor> acquireCursorList() {
+        final var list = cursorListPool.poll();
+        return list == null ? new ArrayList<>() : list;
+    }
+
+    private void releaseCursorList(List<Cursor> cursors) {
+        if (cursors instanceof ArrayList) {
+            cursors.clear();
+            cursorListPool.push((ArrayList<Cursor>) cursors);
+        }
+    }
+
+    // text() で選択された要素には、子要素のテキストを渡さない
+    private static List<NodeBuilder> inheritTextOwners(List<NodeBuilder> textOwners) {
+        for (final var owner : textOwners) {
+            if (owner.request.isDirectText()) {
+                final var inherited = new ArrayList<NodeBuilder>(textOwners.size());
+                for (final var other : textOwners) {
+                    if (!other.request.isDirectText()) {
+                        inherited.add(other);
+                    }
+                }
+                return inherited;
+            }
+        }
+        return textOwners;
+    }
+
+    private void complete(List<NodeBuilder> opened) {
+        for (final var builder : opened) {
+            builder.close();
+            if (builder.queryIndex < 0) {
+                continue;
+            }
+            if (listener != ParseListener.NONE) {
+                builder.endChars = reader.getLocation().getCharacterOffset();
+            }
+            // 同じクエリの item を開始タグの順に出力するため、外側の item が終わるまで出力しない
+            if (builder.enclosing != null) {
+                if (builder.enclosing.innerItems == null) {
+                    builder.enclosing.innerItems = new ArrayList<>();
+                }
+                builder.enclosing.innerItems.add(builder);
+            } else {
+                release(builder);
+            }
+        }
+    }
+
+    private void release(NodeBuilder builder) {
+        completed.add(builder);
+        if (builder.innerItems != null) {
+            for (final var inner : builder.innerItems) {
+                release(inner);
+            }
+        }
+    }
+
+    // 既存の Parser と同じく、タグで区切られたテキスト毎に trim して連結する
+    private void flushText(Frame frame) {
+        var start = 0;
+        var end = textRun.length();
+        while (start < end && textRun.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (start < end && textRun.charAt(end - 1) <= ' ') {
+            --end;
+        }
+        if (start < end) {
+            for (final var owner : frame.textOwners) {
+                owner.appendText(textRun, start, end);
+            }
+            for (final var recorder : frame.recorders) {
+                recorder.buffer.text(textRun, start, end);
+            }
+        }
+        textRun.setLength(0);
+    }
+
+    // 読み進めている要素毎の状態
+    @Value
+    private static class Frame {
+        List<Cursor> cursors;
+        List<NodeBuilder> textOwners;
+        List<NodeBuilder> recorders;
+        List<NodeBuilder> opened;
+    }
+
+    // owner が null の場合は、index 番目のクエリの item root を探している
+    private static class Cursor {
+        private final PathIterator iterator;
+        private final int index;
+        private final NodeBuilder owner;
+        // 入れ子の要素に一致しうる union の選択肢の1つを探しているかどうか
+        private final boolean alternative;
+        // この要素の子要素について、位置の述語を評価するためのもの
+        private final PositionCounter counter;
+
+        Cursor(PathIterator iterator, int index, NodeBuilder owner, boolean alternative) {
+            this.iterator = iterator;
+            this.index = index;
+            this.owner = owner;
+            this.alternative = alternative;
+            counter = PositionCounter.of(iterator);
+        }
+    }
+
+    private class NodeBuilder {
+        private final CompiledRequest request;
+        private final int queryIndex;
+        private final ImmutableMap<String, String> attributes;
+        private final StringBuilder text;
+        private final List<List<NodeBuilder>> children;
+        private final ItemBuffer buffer;
+        private final Column column;
+        private final int row;
+        // listener に渡すための、開始タグと終了タグを読んだ時点の値
+        private long startNanos;
+        private long startChars;
+        private long endChars;
+        // 同じクエリの item で、この item を含むものと、この item に含まれていて終了タグまで読んだもの
+        private NodeBuilder enclosing;
+        private List<NodeBuilder> innerItems;
+
+        NodeBuilder(CompiledRequest request, XMLStreamReader reader, int queryIndex) {
+            this.request = request;
+            this.queryIndex = queryIndex;
+
+            final var attributesBuilder = ImmutableMap.<String, String>builder();
+            final var attributeNames = request.getAttributeNames();
+            for (int i = 0; i < attributeNames.size(); ++i) {
+                final var value = request.attributeValue(reader, i);
+                // DOM の Element#getAttribute に合わせて、存在しない属性は空文字とする
+                attributesBuilder.put(attributeNames.get(i), value == null ? "" : value);
+            }
+            attributes = attributesBuilder.build();
+
+            if (request.isWantText()) {
+                final var pooled = textPool.poll();
+                text = pooled == null ? new StringBuilder() : pooled;
+            } else {
+                text = null;
+            }
+
+            final var childrenCount = request.getChildren().size();
+            children = new ArrayList<>(childrenCount);
+            for (int i = 0; i < childrenCount; ++i) {
+                children.add(new ArrayList<>());
+            }
+            buffer = null;
+            column = null;
+            row = -1;
+        }
+
+        // item の部分木を記録しておき、LazyNode として出力する
+        NodeBuilder(CompiledRequest request, int queryIndex) {
+            this.request = request;
+            this.queryIndex = queryIndex;
+            attributes = null;
+            text = null;
+            children = Collections.emptyList();
+            final var pooled = bufferPool.poll();
+            buffer = pooled == null ? new ItemBuffer() : pooled;
+            column = null;
+            row = -1;
+        }
+
+        // 値を列に書き込み、出力する Node はその行を参照する
+        NodeBuilder(Column column, XMLStreamReader reader, int queryIndex) {
+            this.request = column.getRequest();
+            this.queryIndex = queryIndex;
+            attributes = null;
+            text = null;
+            children = Collections.emptyList();
+            buffer = null;
+            this.column = column;
+            row = column.open(reader);
+        }
+
+        boolean wantsText() {
+            return text != null || column != null && request.isWantText();
+        }
+
+        void appendText(CharSequence run, int start, int end) {
+            final var maxTextLength = options.getMaxTextLength();
+            if (maxTextLength > 0) {
+                final var length = column != null ? column.textLength(row) : text.length();
+                end = Math.min(end, start + Math.max(0, maxTextLength - length));
+            }
+            if (column != null) {
+                column.appendText(run, start, end);
+            } else {
+                text.append(run, start, end);
+            }
+        }
+
+        void close() {
+            if (column != null) {
+                column.close(row);
+            }
+        }
+
+        void addCursors(List<Cursor> cursors) {
+            if (buffer != null) {
+                return;
+            }
+            final var childRequests = request.getChildren();
+            for (int i = 0; i < childRequests.size(); ++i) {
+                addPathCursors(cursors, childRequests.get(i).getIterator(), i, this);
+            }
+        }
+
+        Node<XPath> build() {
+            if (buffer != null) {
+                final var tokens = buffer.toTokens();
+                bufferPool.push(buffer.reset());
+                return new LazyNode(tokens, 0, request, options.getMaxTextLength());
+            }
+            if (column != null) {
+                return column.row(row);
+            }
+
+            final var childRequests = request.getChildren();
+            final var childBuilder = ImmutableMap.<XPath, List<Node<XPath>>>builder();
+            for (int i = 0; i < childRequests.size(); ++i) {
+                final var nodes = ImmutableList.<Node<XPath>>builder();
+                for (final var child : children.get(i)) {
+                    nodes.add(child.build());
+                }
+                childBuilder.put(childRequests.get(i).getKey(), nodes.build());
+            }
+
+            String textValue = null;
+            if (text != null) {
+                textValue = text.toString();
+                if (text.capacity() <= MAX_POOLED_TEXT_CAPACITY) {
+                    text.setLength(0);
+                    textPool.push(text);
+                }
+            }
+
+            return ParsedNode
+                    .<XPath>builder()
+                    .text(textValue)
+                    .attributes(attributes)
+                    .child(childBuilder.build())
+                    .build();
+        }
+    }
+}
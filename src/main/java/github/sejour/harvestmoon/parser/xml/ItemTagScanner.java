@@ -0,0 +1,158 @@
+package github.sejour.harvestmoon.parser.xml;
+
+/**
+ * Byte level state machine that finds the start tag of the item element and the end of the item, without
+ * tokenizing the XML. The encoding has to be ASCII compatible, and the item element must not appear anywhere else
+ * (nested in other items, in comments, etc.).
+ */
+class ItemTagScanner {
+    private static final int TEXT = 0;
+    private static final int TAG_OPEN = 1;
+    private static final int START_TAG = 2;
+    private static final int END_TAG = 3;
+    private static final int MARKUP_DECLARATION = 4;
+    private static final int COMMENT = 5;
+    private static final int CDATA = 6;
+    private static final int DECLARATION = 7;
+    private static final int PROCESSING_INSTRUCTION = 8;
+
+    private final byte[] itemTag;
+
+    private int matched;
+    private boolean inItem;
+    private int state;
+    private int depth;
+    private int quote;
+    private int marks;
+    private int previous;
+
+    // itemTag が null の場合は、consume で要素の深さだけを数える
+    ItemTagScanner(byte[] itemTag) {
+        this.itemTag = itemTag;
+    }
+
+    boolean isInItem() {
+        return inItem;
+    }
+
+    // item の開始タグの途中まで一致しているバイト数
+    int getMatched() {
+        return matched;
+    }
+
+    int getDepth() {
+        return depth;
+    }
+
+    // item の外の1バイトを読む。item の開始タグの名前とそれに続く c を読んだ場合に true を返す。
+    // c は item の一部なので、続けて consume に渡す
+    boolean seek(int c) {
+        if (matched == itemTag.length) {
+            if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+                matched = 0;
+                inItem = true;
+                state = START_TAG;
+                depth = 0;
+                quote = 0;
+                previous = 0;
+                return true;
+            }
+            matched = 0;
+        }
+
+        if (c == itemTag[matched]) {
+            ++matched;
+        } else {
+            matched = c == '<' ? 1 : 0;
+        }
+        return false;
+    }
+
+    // item の中の1バイトを読む。item の終了タグを読み終えると isInItem が false になる
+    void consume(int c) {
+        switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    state = TAG_OPEN;
+                }
+                break;
+            case TAG_OPEN:
+                if (c == '/') {
+                    state = END_TAG;
+                } else if (c == '!') {
+                    state = MARKUP_DECLARATION;
+                } else if (c == '?') {
+                    state = PROCESSING_INSTRUCTION;
+                } else {
+                    state = START_TAG;
+                    quote = 0;
+                }
+                break;
+            case START_TAG:
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    if (previous != '/') {
+                        ++depth;
+                    } else if (depth == 0) {
+                        inItem = false;
+                    }
+                    state = TEXT;
+                }
+                break;
+            case END_TAG:
+                if (c == '>') {
+                    --depth;
+                    if (depth == 0) {
+                        inItem = false;
+                    }
+                    state = TEXT;
+                }
+                break;
+            case MARKUP_DECLARATION:
+                marks = 0;
+                if (c == '-') {
+                    state = COMMENT;
+                } else if (c == '[') {
+                    state = CDATA;
+                } else {
+                    state = c == '>' ? TEXT : DECLARATION;
+                }
+                break;
+            case COMMENT:
+                state = closeMarkup(c, '-', COMMENT);
+                break;
+            case CDATA:
+                state = closeMarkup(c, ']', CDATA);
+                break;
+            case DECLARATION:
+                if (c == '>') {
+                    state = TEXT;
+                }
+                break;
+            case PROCESSING_INSTRUCTION:
+                if (c == '>' && previous == '?') {
+                    state = TEXT;
+                }
+                break;
+            default:
+                break;
+        }
+        previous = c;
+    }
+
+    // "-->" や "]]>" のように、同じ文字が2つ以上続いた後の '>' で閉じる
+    private int closeMarkup(int c, int mark, int currentState) {
+        if (c == mark) {
+            ++marks;
+            return currentState;
+        }
+        final var closed = c == '>' && marks >= 2;
+        marks = 0;
+        return closed ? TEXT : currentState;
+    }
+}
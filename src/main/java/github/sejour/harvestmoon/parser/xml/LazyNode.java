@@ -0,0 +1,241 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import static github.sejour.harvestmoon.path.xml.PathIterator.MATCHED;
+
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.AttributeLookup;
+import github.sejour.harvestmoon.path.xml.PathIterator;
+import github.sejour.harvestmoon.path.xml.PositionCounter;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+/**
+ * {@link Node} over an element recorded in an {@link ItemBuffer}.
+ * The text, attributes and children are decoded on first access and cached, and return the same values as the
+ * {@link github.sejour.harvestmoon.node.ParsedNode} built for the same request.
+ */
+class LazyNode implements Node<XPath> {
+    private final String tokens;
+    private final int start;
+    private final CompiledRequest request;
+    private final int maxTextLength;
+
+    // 複数のスレッドから参照されても、同じ値を計算し直すだけなので同期はしない
+    private String text;
+    private Map<String, String> attributes;
+    private final List<Node<XPath>>[] children;
+
+    @SuppressWarnings("unchecked")
+    LazyNode(String tokens, int start, CompiledRequest request, int maxTextLength) {
+        this.tokens = tokens;
+        this.start = start;
+        this.request = request;
+        this.maxTextLength = maxTextLength;
+        children = (List<Node<XPath>>[]) new List<?>[request.getChildren().size()];
+    }
+
+    @Override
+    public String text() {
+        if (!request.isWantText()) {
+            return null;
+        }
+        if (text == null) {
+            text = decodeText();
+        }
+        return text;
+    }
+
+    // テキストが1つの連続した文字列として記録されている場合は、コピーせずに参照する
+    @Override
+    public CharSequence textSequence() {
+        if (!request.isWantText() || text != null) {
+            return text();
+        }
+
+        var textPosition = -1;
+        final var end = ItemBuffer.skip(tokens, start) - 1;
+        var position = ItemBuffer.contentStart(tokens, start);
+        while (position < end) {
+            switch (tokens.charAt(position)) {
+                case ItemBuffer.START -> position = nextTextPosition(position);
+                case ItemBuffer.TEXT -> {
+                    if (textPosition >= 0) {
+                        return text();
+                    }
+                    textPosition = position + 1;
+                    position = ItemBuffer.stringEnd(tokens, textPosition);
+                }
+                default -> ++position;
+            }
+        }
+        if (textPosition < 0) {
+            return "";
+        }
+        final var textStart = textPosition + 2;
+        return CharBuffer.wrap(tokens, textStart, textStart + limit(0, ItemBuffer.readInt(tokens, textPosition)));
+    }
+
+    @Override
+    public String attribute(String name) {
+        if (attributes == null) {
+            attributes = decodeAttributes();
+        }
+        return attributes.get(name);
+    }
+
+    @Override
+    public List<Node<XPath>> find(XPath path) {
+        final var childRequests = request.getChildren();
+        for (int i = 0; i < childRequests.size(); ++i) {
+            final var childRequest = childRequests.get(i);
+            if (childRequest.getKey().equals(path)) {
+                if (children[i] == null) {
+                    children[i] = decodeChildren(childRequest);
+                }
+                return children[i];
+            }
+        }
+        return null;
+    }
+
+    private String decodeText() {
+        final var builder = new StringBuilder();
+        final var end = ItemBuffer.skip(tokens, start) - 1;
+        var position = ItemBuffer.contentStart(tokens, start);
+        while (position < end) {
+            switch (tokens.charAt(position)) {
+                case ItemBuffer.START -> position = nextTextPosition(position);
+                case ItemBuffer.TEXT -> {
+                    final var textStart = position + 1;
+                    final var textEnd = ItemBuffer.stringEnd(tokens, textStart);
+                    final var length = limit(builder.length(), ItemBuffer.readInt(tokens, textStart));
+                    builder.append(tokens, textStart + 2, textStart + 2 + length);
+                    position = textEnd;
+                }
+                default -> ++position;
+            }
+        }
+        return builder.toString();
+    }
+
+    // 子要素の START token の位置から、次にテキストを探す位置を返す。text() で選択された要素は直下のテキストだけを持つ
+    private int nextTextPosition(int childStart) {
+        return request.isDirectText()
+               ? ItemBuffer.skip(tokens, childStart)
+               : ItemBuffer.contentStart(tokens, childStart);
+    }
+
+    // 既に current 文字ある後に、length 文字のうち何文字まで追加できるか
+    private int limit(int current, int length) {
+        return maxTextLength > 0 ? Math.min(length, Math.max(0, maxTextLength - current)) : length;
+    }
+
+    private Map<String, String> decodeAttributes() {
+        final var builder = ImmutableMap.<String, String>builder();
+        final var attributeNames = request.getAttributeNames();
+        for (int i = 0; i < attributeNames.size(); ++i) {
+            final var name = request.getAttributeQNames().get(i);
+            final var value = attributeValue(tokens, start, name.getNamespaceURI(), name.getLocalPart());
+            // DOM の Element#getAttribute に合わせて、存在しない属性は空文字とする
+            builder.put(attributeNames.get(i), value == null ? "" : value);
+        }
+        return builder.build();
+    }
+
+    private List<Node<XPath>> decodeChildren(CompiledChildRequest childRequest) {
+        final var nodes = ImmutableList.<Node<XPath>>builder();
+        final var iterator = childRequest.getIterator();
+        if (!iterator.isNested()) {
+            findChildren(iterator, position -> nodes.add(new LazyNode(tokens, position, childRequest.getRequest(),
+                                                                      maxTextLength)));
+            return nodes.build();
+        }
+
+        // ItemReader と同じく選択肢毎に探し、token の位置 (文書順) に並べて同じ要素は1度だけ含める
+        final var positions = new TreeSet<Integer>();
+        for (final var alternative : iterator.getAlternatives()) {
+            findChildren(alternative, positions::add);
+        }
+        for (final var position : positions) {
+            nodes.add(new LazyNode(tokens, position, childRequest.getRequest(), maxTextLength));
+        }
+        return nodes.build();
+    }
+
+    // 各要素の子 token を順に辿り、ItemReader と同じく一致した要素の中は同じ iterator では探さない。
+    // 一致した要素の START token の位置を文書順に渡す
+    private void findChildren(PathIterator iterator, IntConsumer matched) {
+        final var attributes = new TokenAttributes();
+        final var iterators = new ArrayDeque<PathIterator>();
+        final var counters = new ArrayList<PositionCounter>();
+        iterators.push(iterator);
+        counters.add(PositionCounter.of(iterator));
+
+        final var end = ItemBuffer.skip(tokens, start) - 1;
+        var position = ItemBuffer.contentStart(tokens, start);
+        while (position < end) {
+            switch (tokens.charAt(position)) {
+                case ItemBuffer.START -> {
+                    final var namePosition = ItemBuffer.namespaceURIPosition(position);
+                    final var localNamePosition = ItemBuffer.localNamePosition(tokens, position);
+                    attributes.start = position;
+                    final var next = iterators.element().next(ItemBuffer.readString(tokens, namePosition),
+                                                              ItemBuffer.readString(tokens, localNamePosition),
+                                                              attributes, counters.get(counters.size() - 1));
+                    if (next == null || next == MATCHED) {
+                        if (next == MATCHED) {
+                            matched.accept(position);
+                        }
+                        position = ItemBuffer.skip(tokens, position);
+                    } else {
+                        iterators.push(next);
+                        counters.add(PositionCounter.of(next));
+                        position = ItemBuffer.contentStart(tokens, position);
+                    }
+                }
+                case ItemBuffer.TEXT -> position = ItemBuffer.stringEnd(tokens, position + 1);
+                default -> {
+                    iterators.pop();
+                    counters.remove(counters.size() - 1);
+                    ++position;
+                }
+            }
+        }
+    }
+
+    // 名前空間のない属性は、名前空間 URI を空文字として記録している
+    private static String attributeValue(String tokens, int start, String namespaceURI, String localName) {
+        final var attributesPosition = ItemBuffer.stringEnd(tokens, ItemBuffer.localNamePosition(tokens, start));
+        final var attributeCount = ItemBuffer.readInt(tokens, attributesPosition);
+        var position = attributesPosition + 2;
+        for (int i = 0; i < attributeCount; ++i) {
+            final var localNamePosition = ItemBuffer.stringEnd(tokens, position);
+            final var valuePosition = ItemBuffer.stringEnd(tokens, localNamePosition);
+            if (ItemBuffer.stringEquals(tokens, position, namespaceURI)
+                && ItemBuffer.stringEquals(tokens, localNamePosition, localName)) {
+                return ItemBuffer.readString(tokens, valuePosition);
+            }
+            position = ItemBuffer.stringEnd(tokens, valuePosition);
+        }
+        return null;
+    }
+
+    private class TokenAttributes implements AttributeLookup {
+        private int start;
+
+        @Override
+        public String getAttributeValue(String namespaceURI, String localName) {
+            return attributeValue(tokens, start, namespaceURI, localName);
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+
+import github.sejour.harvestmoon.exception.ParseException;
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+/**
+ * Compact binary encoding of parsed nodes, to spill them to disk or cache them and read them back without reparsing.
+ * Only the text, attributes and children selected by the {@link Request} are stored, so the decoded nodes return
+ * the same values as the nodes they were encoded from.
+ * <pre>
+ * nodes      := (length(int32) node)* dictionary dictionaryOffset(int32) MAGIC
+ * node       := text(ref) attributeCount(varint) (name(ref) value(ref))* groupCount(varint) group*
+ * group      := key(ref) length(int32) nodeCount(varint) (length(int32) node)*
+ * dictionary := count(varint) (length(varint) utf8)*
+ * ref        := 0 (null) | 1 length(varint) utf8 | index(varint) + 2
+ * </pre>
+ * Child keys and attribute names are always stored once in the dictionary. Short values are deduplicated there too,
+ * and longer ones are written inline. An int32 is big endian, and a varint is an unsigned LEB128.
+ */
+public final class NodeCodec {
+    static final int MAGIC = 0x484d4e01; // "HMN" + version 1
+    static final int NULL_REF = 0;
+    static final int INLINE_REF = 1;
+    static final int DICTIONARY_REF = 2;
+
+    // これより長い値は重複しにくいため、辞書に入れずにそのまま書く
+    private static final int MAX_DICTIONARY_VALUE_LENGTH = 64;
+    // 辞書はエンコードが終わるまでメモリに残るため、値の種類が多い場合はこれ以上増やさない
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private NodeCodec() {}
+
+    public static ByteBuffer encode(Iterable<? extends Node<XPath>> nodes, Request request) {
+        final var out = new ByteArrayOutputStream();
+        try (final var writer = new Writer(out, request)) {
+            for (final var node : nodes) {
+                writer.write(node);
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream への書き込みは失敗しない
+            throw new UncheckedIOException(e);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Returns views of the nodes encoded in the remaining bytes of the buffer. Nothing is copied but the index of the
+     * top level nodes, and each value is decoded when it is first read.
+     * The buffer must not be modified while the nodes are in use, but may be shared by any number of threads.
+     */
+    public static List<Node<XPath>> decode(ByteBuffer buffer) throws ParseException {
+        final var bytes = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        final var limit = bytes.limit();
+        if (limit < 8 || bytes.getInt(limit - 4) != MAGIC) {
+            throw new ParseException("buffer does not contain encoded nodes");
+        }
+        final var dictionaryOffset = bytes.getInt(limit - 8);
+        if (dictionaryOffset < 0 || dictionaryOffset > limit - 8) {
+            throw new ParseException("invalid dictionary offset: " + dictionaryOffset);
+        }
+
+        final var dictionary = Dictionary.read(bytes, dictionaryOffset);
+        final var nodes = ImmutableList.<Node<XPath>>builder();
+        var position = 0;
+        while (position < dictionaryOffset) {
+            final var length = position + 4 <= dictionaryOffset ? bytes.getInt(position) : -1;
+            if (length < 0 || length > dictionaryOffset - position - 4) {
+                throw new ParseException("truncated node at " + position);
+            }
+            nodes.add(new BinaryNode(bytes, position + 4, dictionary));
+            position += 4 + length;
+        }
+        return nodes.build();
+    }
+
+    /**
+     * Encodes nodes one by one into an output stream, holding only the dictionary and the node being written in
+     * memory. The dictionary and the footer are written on {@link #close()}, which does not close the stream.
+     */
+    public static class Writer implements Closeable {
+        private final OutputStream out;
+        private final Request request;
+        private final Buffer buffer = new Buffer();
+        private final Map<String, Integer> dictionaryIndex = new HashMap<>();
+        private final Buffer dictionary = new Buffer();
+        private long written;
+        private boolean closed;
+
+        public Writer(OutputStream out, Request request) {
+            this.out = out;
+            this.request = request;
+        }
+
+        public void write(Node<XPath> node) throws IOException {
+            if (closed) {
+                throw new IOException("writer is already closed");
+            }
+            buffer.length = 0;
+            final var lengthPosition = buffer.reserveInt();
+            writeNode(node, request);
+            buffer.patchLength(lengthPosition);
+            flush(buffer);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (written > Integer.MAX_VALUE - 8) {
+                throw new IOException("encoded nodes exceed 2GB");
+            }
+            final var dictionaryOffset = (int) written;
+            buffer.length = 0;
+            buffer.writeVarint(dictionaryIndex.size());
+            flush(buffer);
+            flush(dictionary);
+            buffer.length = 0;
+            buffer.writeInt(dictionaryOffset);
+            buffer.writeInt(MAGIC);
+            flush(buffer);
+        }
+
+        private void flush(Buffer source) throws IOException {
+            out.write(source.bytes, 0, source.length);
+            written += source.length;
+        }
+
+        private void writeNode(Node<XPath> node, Request request) {
+            writeValue(node.text());
+
+            final var attributeNames = request.getAttributeRequests();
+            if (attributeNames == null) {
+                buffer.writeVarint(0);
+            } else {
+                buffer.writeVarint(attributeNames.size());
+                for (final var name : attributeNames) {
+                    writeKey(name);
+                    writeValue(node.attribute(name));
+                }
+            }
+
+            final var childRequests = request.getChildRequests();
+            if (childRequests == null) {
+                buffer.writeVarint(0);
+                return;
+            }
+            // 要求された子要素の一覧を持たない Node もあるため、find が null を返すものは書かない
+            var groupCount = 0;
+            for (final var key : childRequests.keySet()) {
+                if (node.find(key) != null) {
+                    ++groupCount;
+                }
+            }
+            buffer.writeVarint(groupCount);
+            for (final var entry : childRequests.entrySet()) {
+                final var children = node.find(entry.getKey());
+                if (children == null) {
+                    continue;
+                }
+                writeKey(entry.getKey().getExpression());
+                final var groupLengthPosition = buffer.reserveInt();
+                buffer.writeVarint(children.size());
+                for (final var child : children) {
+                    final var lengthPosition = buffer.reserveInt();
+                    writeNode(child, entry.getValue());
+                    buffer.patchLength(lengthPosition);
+                }
+                buffer.patchLength(groupLengthPosition);
+            }
+        }
+
+        private void writeKey(String key) {
+            buffer.writeVarint(DICTIONARY_REF + index(key));
+        }
+
+        private void writeValue(String value) {
+            if (value == null) {
+                buffer.writeVarint(NULL_REF);
+                return;
+            }
+            if (value.length() <= MAX_DICTIONARY_VALUE_LENGTH) {
+                final var index = dictionaryIndex.get(value);
+                if (index != null) {
+                    buffer.writeVarint(DICTIONARY_REF + index);
+                    return;
+                }
+                if (dictionaryIndex.size() < MAX_DICTIONARY_SIZE) {
+                    buffer.writeVarint(DICTIONARY_REF + index(value));
+                    return;
+                }
+            }
+            buffer.writeVarint(INLINE_REF);
+            buffer.writeString(value);
+        }
+
+        private int index(String value) {
+            return dictionaryIndex.computeIfAbsent(value, key -> {
+                dictionary.writeString(key);
+                return dictionaryIndex.size();
+            });
+        }
+    }
+
+    /**
+     * Strings of the dictionary, decoded on first access.
+     */
+    static class Dictionary {
+        private final ByteBuffer bytes;
+        private final int[] offsets;
+        // 複数のスレッドから参照されても、同じ値を計算し直すだけなので同期はしない
+        private final String[] strings;
+
+        private Dictionary(ByteBuffer bytes, int[] offsets) {
+            this.bytes = bytes;
+            this.offsets = offsets;
+            strings = new String[offsets.length];
+        }
+
+        static Dictionary read(ByteBuffer bytes, int position) throws ParseException {
+            final var count = readVarint(bytes, position);
+            position = varintEnd(bytes, position);
+            final var offsets = new int[count];
+            for (int i = 0; i < count; ++i) {
+                offsets[i] = position;
+                position = stringEnd(bytes, position);
+            }
+            if (position != bytes.limit() - 8) {
+                throw new ParseException("invalid dictionary at " + position);
+            }
+            return new Dictionary(bytes, offsets);
+        }
+
+        String get(int index) {
+            var string = strings[index];
+            if (string == null) {
+                string = readString(bytes, offsets[index]);
+                strings[index] = string;
+            }
+            return string;
+        }
+    }
+
+    // position にある ref の値を返す
+    static String readRef(ByteBuffer bytes, int position, Dictionary dictionary) {
+        final var ref = readVarint(bytes, position);
+        return switch (ref) {
+            case NULL_REF -> null;
+            case INLINE_REF -> readString(bytes, varintEnd(bytes, position));
+            default -> dictionary.get(ref - DICTIONARY_REF);
+        };
+    }
+
+    static int refEnd(ByteBuffer bytes, int position) {
+        final var end = varintEnd(bytes, position);
+        return readVarint(bytes, position) == INLINE_REF ? stringEnd(bytes, end) : end;
+    }
+
+    static int readVarint(ByteBuffer bytes, int position) {
+        var value = 0;
+        for (int shift = 0; ; shift += 7) {
+            final var b = bytes.get(position++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    static int varintEnd(ByteBuffer bytes, int position) {
+        while (bytes.get(position++) < 0) {
+            // 最上位ビットが立っている間は続く
+        }
+        return position;
+    }
+
+    static String readString(ByteBuffer bytes, int position) {
+        final var length = readVarint(bytes, position);
+        final var start = varintEnd(bytes, position);
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        }
+        final var copy = new byte[length];
+        bytes.get(start, copy);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+
+    static int stringEnd(ByteBuffer bytes, int position) {
+        return varintEnd(bytes, position) + readVarint(bytes, position);
+    }
+
+    // ArrayList のように伸長する byte 列。長さは後から書き戻す
+    private static class Buffer {
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                bytes[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            ensure(4);
+            putInt(length, value);
+            length += 4;
+        }
+
+        int reserveInt() {
+            final var position = length;
+            writeInt(0);
+            return position;
+        }
+
+        // position に予約した int32 に、その直後からの長さを書く
+        void patchLength(int position) {
+            putInt(position, length - position - 4);
+        }
+
+        void writeString(String value) {
+            final var utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length);
+            ensure(utf8.length);
+            System.arraycopy(utf8, 0, bytes, length, utf8.length);
+            length += utf8.length;
+        }
+
+        private void putInt(int position, int value) {
+            bytes[position] = (byte) (value >>> 24);
+            bytes[position + 1] = (byte) (value >>> 16);
+            bytes[position + 2] = (byte) (value >>> 8);
+            bytes[position + 3] = (byte) value;
+        }
+
+        private void ensure(int size) {
+            if (length + size > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+            }
+        }
+    }
+}
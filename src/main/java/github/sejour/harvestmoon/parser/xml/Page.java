@@ -0,0 +1,17 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder(toBuilder = true)
+public class Page {
+    public static final Page ALL = builder().build();
+
+    // 先頭から読み飛ばす item の数。読み飛ばした item は Node を構築しない
+    long offset;
+
+    // 出力する item の数の上限。達した時点で入力を読むのをやめる
+    @Builder.Default
+    long limit = Long.MAX_VALUE;
+}
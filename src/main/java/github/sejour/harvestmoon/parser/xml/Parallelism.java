@@ -0,0 +1,23 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder(toBuilder = true)
+public class Parallelism {
+    @Builder.Default
+    Scheduler scheduler = Schedulers.computation();
+
+    @Builder.Default
+    int concurrency = Runtime.getRuntime().availableProcessors();
+
+    // StreamParser でファイルを分割して並列にパースする際の、1チャンクあたりのバイト数
+    @Builder.Default
+    long chunkSize = 32L * 1024 * 1024;
+
+    // false の場合は、文書順ではなく構築が終わった順に出力する
+    boolean ordered;
+}
@@ -0,0 +1,23 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder(toBuilder = true)
+public class ParseOptions {
+    public static final ParseOptions DEFAULT = builder().build();
+
+    // item を LazyNode として出力する。テキストや属性、子要素は最初に参照された時にデコードされる
+    boolean lazy;
+
+    // 0 より大きい場合は、各 Node のテキストをこの文字数までで切り詰める
+    int maxTextLength;
+
+    // 複数のクエリを同時に読む場合は使えない
+    @Builder.Default
+    Page page = Page.ALL;
+
+    @Builder.Default
+    ItemFilter filter = ItemFilter.ALL;
+}
@@ -1,22 +1,26 @@
 package github.sejour.harvestmoon.parser.xml;
 
-import static github.sejour.harvestmoon.util.StreamUtils.safeStream;
+import static org.w3c.dom.Node.CDATA_SECTION_NODE;
+import static org.w3c.dom.Node.ELEMENT_NODE;
+import static org.w3c.dom.Node.TEXT_NODE;
 
 import java.io.InputStream;
 import java.io.StringReader;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
@@ -25,34 +29,146 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import github.sejour.harvestmoon.exception.ParseException;
+import github.sejour.harvestmoon.metrics.ListeningStreamReader;
+import github.sejour.harvestmoon.metrics.ParseListener;
+import github.sejour.harvestmoon.metrics.ParseListener.Phase;
 import github.sejour.harvestmoon.node.Node;
 import github.sejour.harvestmoon.node.ParsedNode;
 import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+import github.sejour.harvestmoon.path.xml.PathIterator;
 import github.sejour.harvestmoon.path.xml.XPath;
 import github.sejour.harvestmoon.path.xml.XPathStreamReader;
 
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.functions.Function;
+import lombok.AllArgsConstructor;
 import lombok.RequiredArgsConstructor;
+import lombok.Value;
 
 @RequiredArgsConstructor
+@AllArgsConstructor
 public class Parser implements github.sejour.harvestmoon.parser.Parser<ItemRootXPath, XPath, Request> {
     private final XMLInputFactory xmlInputFactory;
     private final XPathFactory xPathFactory;
     private final DocumentBuilderFactory documentBuilderFactory;
+    private ParseListener listener = ParseListener.NONE;
 
     @Override
     public Observable<Node<XPath>> parse(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest)
             throws ParseException {
-        XMLEventReader reader;
-        DocumentBuilder builder;
-        final var xPath = xPathFactory.newXPath();
+        return parse(in, itemRootPath, nodeRequest, Page.ALL);
+    }
+
+    // page の範囲外の item は DOM にせずに読み飛ばす
+    public Observable<Node<XPath>> parse(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest, Page page)
+            throws ParseException {
+        final var reader = createReader(in);
+        final var itemParser = createItemParser(itemRootPath, nodeRequest);
+
+        return XPathStreamReader
+                .readAll(reader, itemRootPath.getIterator(), listener, page.getOffset(), page.getLimit())
+                .map(item -> itemParser.parse(item, ElementCharsReader.lastElementChars(reader)));
+    }
+
+    @Override
+    public Flowable<Node<XPath>> parseFlowable(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest)
+            throws ParseException {
+        return parseFlowable(in, itemRootPath, nodeRequest, Page.ALL);
+    }
+
+    public Flowable<Node<XPath>> parseFlowable(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest,
+                                               Page page) throws ParseException {
+        final var reader = createReader(in);
+        final var itemParser = createItemParser(itemRootPath, nodeRequest);
+
+        return XPathStreamReader
+                .readAllFlowable(reader, itemRootPath.getIterator(), listener, page.getOffset(), page.getLimit())
+                .map(item -> itemParser.parse(item, ElementCharsReader.lastElementChars(reader)));
+    }
+
+    public Observable<Node<XPath>> parse(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest,
+                                         Parallelism parallelism) throws ParseException {
+        return parseFlowable(in, itemRootPath, nodeRequest, parallelism).toObservable();
+    }
+
+    public Flowable<Node<XPath>> parseFlowable(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest,
+                                               Parallelism parallelism) throws ParseException {
+        final var reader = createReader(in);
+        // 設定の誤りはワーカーではなくここで ParseException として返す
+        createItemParser(itemRootPath, nodeRequest);
+
+        // DocumentBuilder と XPath はスレッドセーフではないため、item 毎にプールから借りて1つのスレッドだけで使う。
+        // 仮想スレッドのように item 毎にスレッドが変わる Scheduler もあるため、ThreadLocal にはしない
+        final var itemParsers = new ConcurrentLinkedQueue<ItemParser>();
+
+        final Function<SerializedItem, Flowable<Node<XPath>>> materializer = serialized -> Flowable
+                .just(serialized)
+                .subscribeOn(parallelism.getScheduler())
+                .map(item -> {
+                    var itemParser = itemParsers.poll();
+                    if (itemParser == null) {
+                        itemParser = createItemParser(itemRootPath, nodeRequest);
+                    }
+                    final var node = itemParser.parse(item.getXml(), item.getChars());
+                    itemParsers.offer(itemParser);
+                    return node;
+                });
+
+        // 入力の文字数は、item を読み終えた直後に読み込み側のスレッドで取得する
+        final var items = XPathStreamReader
+                .readAllFlowable(reader, itemRootPath.getIterator(), listener)
+                .map(item -> new SerializedItem(item, ElementCharsReader.lastElementChars(reader)));
+        if (parallelism.isOrdered()) {
+            return items.concatMapEager(materializer, parallelism.getConcurrency(), 1);
+        }
+        return items.flatMap(materializer, parallelism.getConcurrency());
+    }
 
+    private XMLStreamReader createReader(InputStream in) throws ParseException {
         try {
-            reader = xmlInputFactory.createXMLEventReader(in);
+            final var reader = ListeningStreamReader.wrap(xmlInputFactory.createXMLStreamReader(in), listener);
+            // item を文字列にし直すため、listener に渡す item の文字数は入力の位置から求める
+            return listener == ParseListener.NONE ? reader : new ElementCharsReader(reader);
         } catch (XMLStreamException e) {
-            throw new ParseException("failed to create XMLEventReader", e);
+            throw new ParseException("failed to create XMLStreamReader", e);
+        }
+    }
+
+    // item の文字列と、その入力の文字数 (分からない場合は -1) から Node を作る
+    private interface ItemParser {
+        Node<XPath> parse(String item, long chars) throws Exception;
+    }
+
+    @Value
+    private static class SerializedItem {
+        String xml;
+        long chars;
+    }
+
+    private ItemParser createItemParser(ItemRootXPath itemRootPath, Request nodeRequest)
+            throws ParseException {
+        DocumentBuilder builder;
+        ExpressionRequest expressionRequest;
+        // item は XPathStreamReader で文字列にするため、入れ子の要素に一致しうる union は StreamParser でしか扱えない
+        if (itemRootPath.getIterator().isNested()) {
+            throw new ParseException("union selecting nested items is not supported by Parser, use StreamParser: "
+                                     + itemRootPath);
+        }
+        final var xPath = xPathFactory.newXPath();
+        final var namespaces = itemRootPath.getNamespaces();
+        if (!namespaces.isEmpty()) {
+            if (!documentBuilderFactory.isNamespaceAware()) {
+                throw new ParseException("DocumentBuilderFactory must be namespace aware to resolve namespaces");
+            }
+            // XPath 1.0 では接頭辞のない名前は常に名前空間を持たないため、DOM では既定の名前空間を解決できない
+            if (namespaces.containsKey(XMLConstants.DEFAULT_NS_PREFIX)) {
+                throw new ParseException("default element namespace is not supported by Parser, use a prefix");
+            }
+            xPath.setNamespaceContext(new MapNamespaceContext(namespaces));
         }
 
         try {
@@ -61,48 +177,153 @@ public class Parser implements github.sejour.harvestmoon.parser.Parser<ItemRootX
             throw new ParseException("failed to create DocumentBuilderFactory", e);
         }
 
-        return XPathStreamReader
-                .readAll(reader, itemRootPath.getIterator())
-                .map(str -> {
-                    // TODO: Documentへのパースは XPathStreamReader 側で行っても良いかも
-                    final var document = builder.parse(new InputSource(new StringReader(str)));
-                    return parse(xPath, document.getDocumentElement(), nodeRequest);
-                });
+        try {
+            // StreamParser と同じく、text() で選択した item は直下のテキストだけを持つ
+            expressionRequest = PathIterator.selectsText(itemRootPath.getExpression())
+                                ? ExpressionRequest.DIRECT_TEXT : ExpressionRequest.compile(xPath, nodeRequest);
+        } catch (XPathExpressionException e) {
+            throw new ParseException("failed to compile xpath expression", e);
+        }
+
+        // DocumentBuilder と同様に、この関数を使うスレッドに閉じているため InputSource も使い回す
+        final var source = new InputSource();
+        return (str, chars) -> {
+            final var start = listener == ParseListener.NONE ? 0 : System.nanoTime();
+            // TODO: Documentへのパースは XPathStreamReader 側で行っても良いかも
+            source.setCharacterStream(new StringReader(str));
+            final var document = builder.parse(source);
+            final var node = parse(document.getDocumentElement(), expressionRequest);
+            if (listener != ParseListener.NONE) {
+                final var nanos = System.nanoTime() - start;
+                listener.onPhase(Phase.EVALUATE, nanos);
+                listener.onItem(nanos, chars);
+            }
+            return node;
+        };
     }
 
-    private static Node<XPath> parse(javax.xml.xpath.XPath xPath, Element element, Request request) {
-        final var attributes = safeStream(request.getAttributeRequests())
-                .map(key -> Map.entry(key, element.getAttribute(key)))
-                .collect(Collectors.toMap(Map.Entry<String, String>::getKey,
-                                          Map.Entry<String, String>::getValue));
-
-        final var child = Optional
-                .ofNullable(request.getChildRequests())
-                .map(Map::entrySet)
-                .stream()
-                .flatMap(Set::stream)
-                .map(req -> {
-                    try {
-                        final var nodes = (NodeList) xPath
-                                .evaluate(req.getKey().getExpression(), element, XPathConstants.NODESET);
-                        final var nodesLen = nodes.getLength();
-                        final var builder = ImmutableList.<Node<XPath>>builder();
-                        for (int i = 0; i < nodesLen; ++i) {
-                            builder.add(parse(xPath, (Element) nodes.item(i), req.getValue()));
-                        }
-                        return Map.<XPath, List<Node<XPath>>>entry(req.getKey(), builder.build());
-                    } catch (XPathExpressionException e) {
-                        throw new RuntimeException("failed to evaluate xpath expression in parse method", e);
-                    }
-                })
-                .collect(Collectors.toMap(Map.Entry<XPath, List<Node<XPath>>>::getKey,
-                                          Map.Entry<XPath, List<Node<XPath>>>::getValue));
+    private static Node<XPath> parse(Element element, ExpressionRequest request) {
+        // item 毎に呼ばれるため、Stream や Map.Entry を経由せずに直接 ImmutableMap を組み立てる
+        final var attributeRequests = request.getRequest().getAttributeRequests();
+        final var attributes = ImmutableMap.<String, String>builder();
+        if (attributeRequests != null) {
+            for (final var key : attributeRequests) {
+                attributes.put(key, element.getAttribute(key));
+            }
+        }
+
+        final var child = ImmutableMap.<XPath, List<Node<XPath>>>builder();
+        for (final var req : request.getChildren()) {
+            final NodeList nodes;
+            try {
+                nodes = (NodeList) req.getExpression().evaluate(element, XPathConstants.NODESET);
+            } catch (XPathExpressionException e) {
+                throw new RuntimeException("failed to evaluate xpath expression in parse method", e);
+            }
+            final var nodesLen = nodes.getLength();
+            final var builder = ImmutableList.<Node<XPath>>builderWithExpectedSize(nodesLen);
+            for (int i = 0; i < nodesLen; ++i) {
+                builder.add(parse((Element) nodes.item(i), req.getRequest()));
+            }
+            child.put(req.getKey(), builder.build());
+        }
+
+        String text = null;
+        if (request.isDirectText()) {
+            text = directText(element);
+        } else if (request.getRequest().isWantText()) {
+            text = element.getTextContent();
+        }
 
         return ParsedNode
                 .<XPath>builder()
-                .text(request.isWantText() ? element.getTextContent() : null)
-                .attributes(attributes)
-                .child(child)
+                .text(text)
+                .attributes(attributes.build())
+                .child(child.build())
                 .build();
     }
+
+    // ItemReader と同じく、タグで区切られた直下のテキスト毎に trim して連結する
+    private static String directText(Element element) {
+        final var text = new StringBuilder();
+        final var run = new StringBuilder();
+        for (var child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            switch (child.getNodeType()) {
+                case TEXT_NODE, CDATA_SECTION_NODE -> run.append(child.getNodeValue());
+                case ELEMENT_NODE -> {
+                    text.append(run.toString().trim());
+                    run.setLength(0);
+                }
+                default -> {}
+            }
+        }
+        return text.append(run.toString().trim()).toString();
+    }
+
+    // Request の子要素の XPath を一度だけコンパイルしたもの。XPathExpression はスレッドセーフではないため共有しない
+    @Value
+    private static class ExpressionRequest {
+        // text() で選択された要素のもの。直下のテキストだけを持つ
+        static final ExpressionRequest DIRECT_TEXT = new ExpressionRequest(Request.builder().wantText(true).build(),
+                                                                           List.of(), true);
+
+        Request request;
+        List<ExpressionChildRequest> children;
+        boolean directText;
+
+        static ExpressionRequest compile(javax.xml.xpath.XPath xPath, Request request)
+                throws XPathExpressionException {
+            final var children = ImmutableList.<ExpressionChildRequest>builder();
+            if (request.getChildRequests() != null) {
+                for (final var req : request.getChildRequests().entrySet()) {
+                    final var expression = req.getKey().getExpression();
+                    // text() のノードではなく親の要素を選び、StreamParser と同じく要素毎に1つの Node にする
+                    if (PathIterator.selectsText(expression)) {
+                        final var parent = xPath.compile(PathIterator.withoutTextStep(expression));
+                        children.add(new ExpressionChildRequest(req.getKey(), parent, DIRECT_TEXT));
+                    } else {
+                        children.add(new ExpressionChildRequest(req.getKey(), xPath.compile(expression),
+                                                                compile(xPath, req.getValue())));
+                    }
+                }
+            }
+            return new ExpressionRequest(request, children.build(), false);
+        }
+    }
+
+    @Value
+    private static class ExpressionChildRequest {
+        XPath key;
+        XPathExpression expression;
+        ExpressionRequest request;
+    }
+
+    @Value
+    private static class MapNamespaceContext implements NamespaceContext {
+        Map<String, String> namespaces;
+
+        @Override
+        public String getNamespaceURI(String prefix) {
+            return namespaces.getOrDefault(prefix, XMLConstants.NULL_NS_URI);
+        }
+
+        @Override
+        public String getPrefix(String namespaceURI) {
+            return namespaces.entrySet()
+                             .stream()
+                             .filter(entry -> entry.getValue().equals(namespaceURI))
+                             .map(Map.Entry::getKey)
+                             .findFirst()
+                             .orElse(null);
+        }
+
+        @Override
+        public Iterator<String> getPrefixes(String namespaceURI) {
+            return namespaces.entrySet()
+                             .stream()
+                             .filter(entry -> entry.getValue().equals(namespaceURI))
+                             .map(Map.Entry::getKey)
+                             .iterator();
+        }
+    }
 }
@@ -0,0 +1,13 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+
+import lombok.Builder;
+import lombok.Value;
+
+@Value
+@Builder
+public class Query {
+    ItemRootXPath itemRootPath;
+    Request nodeRequest;
+}
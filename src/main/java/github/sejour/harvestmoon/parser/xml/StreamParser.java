@@ -0,0 +1,398 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import github.sejour.harvestmoon.exception.ParseException;
+import github.sejour.harvestmoon.metrics.ListeningStreamReader;
+import github.sejour.harvestmoon.metrics.ParseListener;
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+import github.sejour.harvestmoon.path.xml.PathIterator;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Emitter;
+import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.functions.Function;
+import io.reactivex.rxjava3.functions.Supplier;
+import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import lombok.Value;
+
+/**
+ * Single pass implementation of {@link Parser}.
+ * Items are built directly from the stream events instead of being serialized and re-parsed into a DOM.
+ */
+@RequiredArgsConstructor
+@AllArgsConstructor
+public class StreamParser implements github.sejour.harvestmoon.parser.Parser<ItemRootXPath, XPath, Request> {
+    private static final String CHUNK_ROOT = "harvest-moon-chunk";
+
+    private final XMLInputFactory xmlInputFactory;
+    private ParseListener listener = ParseListener.NONE;
+
+    @Override
+    public Observable<Node<XPath>> parse(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest)
+            throws ParseException {
+        return parse(in, itemRootPath, nodeRequest, ParseOptions.DEFAULT);
+    }
+
+    public Observable<Node<XPath>> parse(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest,
+                                         ParseOptions options) throws ParseException {
+        final var reader = createReader(in);
+        final var request = CompiledRequest.compile(itemRootPath, nodeRequest);
+
+        return Observable.create(emitter -> {
+            try {
+                final var itemReader = createItemReader(reader, itemRootPath, request, options);
+                for (var node = itemReader.next(); node != null && !emitter.isDisposed(); node = itemReader.next()) {
+                    emitter.onNext(node);
+                }
+                emitter.onComplete();
+            } finally {
+                reader.close();
+            }
+        });
+    }
+
+    @Override
+    public Flowable<Node<XPath>> parseFlowable(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest)
+            throws ParseException {
+        return parseFlowable(in, itemRootPath, nodeRequest, ParseOptions.DEFAULT);
+    }
+
+    public Flowable<Node<XPath>> parseFlowable(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest,
+                                               ParseOptions options) throws ParseException {
+        final var reader = createReader(in);
+        final var request = CompiledRequest.compile(itemRootPath, nodeRequest);
+
+        return generate(() -> createItemReader(reader, itemRootPath, request, options));
+    }
+
+    public Flowable<List<Node<XPath>>> parseBatches(InputStream in, ItemRootXPath itemRootPath,
+                                                    Request nodeRequest, Batching batching)
+            throws ParseException {
+        return parseBatches(in, itemRootPath, nodeRequest, batching, ParseOptions.DEFAULT);
+    }
+
+    // item を1件ずつではなく、batching の上限毎にまとめて出力する
+    public Flowable<List<Node<XPath>>> parseBatches(InputStream in, ItemRootXPath itemRootPath,
+                                                    Request nodeRequest, Batching batching,
+                                                    ParseOptions options) throws ParseException {
+        final var reader = createReader(in);
+        final var request = CompiledRequest.compile(itemRootPath, nodeRequest);
+
+        return generate(() -> createItemReader(reader, itemRootPath, request, options),
+                        itemReader -> itemReader.nextBatch(batching));
+    }
+
+    // item を batching の上限毎に、列指向の ColumnarBatch にまとめて出力する
+    public Flowable<ColumnarBatch> parseColumnar(InputStream in, ItemRootXPath itemRootPath, Request nodeRequest,
+                                                 Batching batching) throws ParseException {
+        final var request = CompiledRequest.compile(itemRootPath, nodeRequest);
+        // 1つの列の行は入れ子にできない
+        if (itemRootPath.getIterator().isNested() || request.selectsNested()) {
+            throw new ParseException("union selecting nested elements is not supported in columnar output: "
+                                     + itemRootPath);
+        }
+        final var reader = createReader(in);
+
+        return generate(() -> new ItemReader(reader, itemRootPath.getIterator(), request)
+                                .columnar()
+                                .listen(listener),
+                        itemReader -> itemReader.nextColumnarBatch(batching));
+    }
+
+    // 複数のクエリの item を一度の読み込みで取り出す。
+    // item は終了タグを読んだ順に出力されるため、他のクエリの item の中にある item はそちらより先に出力される
+    public Observable<TaggedNode> parse(InputStream in, List<Query> queries) throws ParseException {
+        return parseFlowable(in, queries).toObservable();
+    }
+
+    public Flowable<TaggedNode> parseFlowable(InputStream in, List<Query> queries) throws ParseException {
+        final var reader = createReader(in);
+        final var itemRootIterators = queries
+                .stream()
+                .map(query -> query.getItemRootPath().getIterator())
+                .collect(toImmutableList());
+        final var requests = queries
+                .stream()
+                .map(query -> CompiledRequest.compile(query.getItemRootPath(), query.getNodeRequest()))
+                .collect(toImmutableList());
+
+        final Supplier<ItemReader> itemReaderSupplier = () -> new ItemReader(reader, itemRootIterators, requests)
+                .listen(listener);
+        return Flowable.generate(itemReaderSupplier, (itemReader, emitter) -> {
+            final var node = itemReader.next();
+            if (node != null) {
+                final var queryIndex = itemReader.getQueryIndex();
+                emitter.onNext(new TaggedNode(queryIndex, queries.get(queryIndex), node));
+            } else {
+                emitter.onComplete();
+            }
+        });
+    }
+
+    // クエリ毎のストリームを queries と同じ順に返す。入力は全てのストリームが購読されてから一度だけ読むため、
+    // 呼び出し側は必要のないものも含めて、返した全てのストリームを購読しなければならない
+    public List<Flowable<Node<XPath>>> parseEach(InputStream in, List<Query> queries) throws ParseException {
+        final var tagged = parseFlowable(in, queries)
+                .publish()
+                .autoConnect(queries.size());
+
+        return IntStream
+                .range(0, queries.size())
+                .mapToObj(index -> tagged.filter(node -> node.getQueryIndex() == index).map(TaggedNode::getNode))
+                .collect(toImmutableList());
+    }
+
+    public Observable<Node<XPath>> parse(Path file, ItemRootXPath itemRootPath, Request nodeRequest,
+                                         Parallelism parallelism) throws ParseException {
+        return parseFlowable(file, itemRootPath, nodeRequest, parallelism).toObservable();
+    }
+
+    // ファイルをバイト単位で分割し、各チャンク内で itemRootPath の末尾の要素を探して並列にパースする。
+    // フラットなレコードの繰り返しからなるファイル (/feed/entry など) を想定している
+    public Flowable<Node<XPath>> parseFlowable(Path file, ItemRootXPath itemRootPath, Request nodeRequest,
+                                               Parallelism parallelism) throws ParseException {
+        final var leaf = splittableLeaf(itemRootPath);
+        final var request = CompiledRequest.compile(itemRootPath, nodeRequest);
+        final var chunkIterator = PathIterator.builder().child(leaf).build();
+        final var chunkSize = parallelism.getChunkSize();
+
+        return Flowable.using(() -> FileChannel.open(file, StandardOpenOption.READ), channel -> {
+            final var envelope = readEnvelope(file, leaf);
+            final var size = channel.size();
+            final Function<Long, Flowable<Node<XPath>>> chunkParser = index -> {
+                final var start = index * chunkSize;
+                final var end = Math.min(size, start + chunkSize);
+                return generate(() -> {
+                    final var in = new ItemChunkInputStream(channel, start, end, envelope.getItemTag(),
+                                                            envelope.getHeader(), envelope.getFooter());
+                    return new ItemReader(createChunkReader(in), chunkIterator, request).listen(listener);
+                }).subscribeOn(parallelism.getScheduler());
+            };
+
+            final var chunks = Flowable.rangeLong(0, (size + chunkSize - 1) / chunkSize);
+            if (parallelism.isOrdered()) {
+                return chunks.concatMapEager(chunkParser, parallelism.getConcurrency(), Flowable.bufferSize());
+            }
+            return chunks.flatMap(chunkParser, parallelism.getConcurrency());
+        }, FileChannel::close);
+    }
+
+    public Flowable<CheckpointedNode> parseResumable(Path file, ItemRootXPath itemRootPath, Request nodeRequest)
+            throws ParseException {
+        return parseResumable(file, itemRootPath, nodeRequest, Checkpoint.start(itemRootPath));
+    }
+
+    // checkpoint の位置から、その次の item の開始タグを探してパースを再開する。
+    // 並列にパースする場合と同じく、フラットなレコードの繰り返しからなるファイルを想定している
+    public Flowable<CheckpointedNode> parseResumable(Path file, ItemRootXPath itemRootPath, Request nodeRequest,
+                                                     Checkpoint checkpoint) throws ParseException {
+        if (!itemRootPath.equals(checkpoint.getItemRootPath())) {
+            throw new ParseException("checkpoint was taken with another item root path: "
+                                     + checkpoint.getItemRootPath());
+        }
+
+        final var leaf = splittableLeaf(itemRootPath);
+        final var request = CompiledRequest.compile(itemRootPath, nodeRequest);
+        final var chunkIterator = PathIterator.builder().child(leaf).build();
+
+        return Flowable.using(() -> FileChannel.open(file, StandardOpenOption.READ), channel -> {
+            final var envelope = readEnvelope(file, leaf);
+            return Flowable.generate(() -> {
+                final var in = new ItemChunkInputStream(channel, checkpoint.getByteOffset(), channel.size(),
+                                                        envelope.getItemTag(), envelope.getHeader(),
+                                                        envelope.getFooter()).trackItemEnds();
+                final var reader = new CheckpointReader(createChunkReader(in), in, checkpoint.getByteOffset());
+                return new ResumeState(new ItemReader(reader, chunkIterator, request).listen(listener), reader,
+                                       checkpoint.getItemIndex());
+            }, (ResumeState state, Emitter<CheckpointedNode> emitter) -> {
+                final var node = state.itemReader.next();
+                if (node != null) {
+                    final var next = new Checkpoint(itemRootPath, state.reader.getItemEnd(), ++state.itemIndex);
+                    emitter.onNext(new CheckpointedNode(node, next));
+                } else {
+                    emitter.onComplete();
+                }
+            }, state -> state.reader.close());
+        }, FileChannel::close);
+    }
+
+    public ItemFeeder feeder(ItemRootXPath itemRootPath, Request nodeRequest) throws ParseException {
+        return feeder(itemRootPath, nodeRequest, ParseOptions.DEFAULT);
+    }
+
+    // 入力のバイト列を受け取った分だけ読み進める ItemFeeder を返す
+    public ItemFeeder feeder(ItemRootXPath itemRootPath, Request nodeRequest, ParseOptions options)
+            throws ParseException {
+        // ItemFeeder は受け取ったバイト列毎に ItemReader を作るため、page を引き継げない
+        if (!options.getPage().equals(Page.ALL)) {
+            throw new ParseException("page is not supported by ItemFeeder");
+        }
+        return new ItemFeeder(this, itemRootPath, splittableLeaf(itemRootPath),
+                              CompiledRequest.compile(itemRootPath, nodeRequest), options);
+    }
+
+    // バイト列が届く毎に、終了タグまで読めた item を出力する。bytes を出力したスレッドで読み、入力を待ってブロックしない
+    public Flowable<Node<XPath>> parseFeed(Flowable<ByteBuffer> bytes, ItemRootXPath itemRootPath,
+                                           Request nodeRequest) throws ParseException {
+        // 設定の誤りは購読時ではなくここで ParseException として返す
+        feeder(itemRootPath, nodeRequest);
+
+        return Flowable.defer(() -> {
+            final var feeder = feeder(itemRootPath, nodeRequest);
+            return bytes.concatMapIterable(feeder::feed)
+                        .concatWith(Completable.fromAction(feeder::finish));
+        });
+    }
+
+    private static class ResumeState {
+        private final ItemReader itemReader;
+        private final CheckpointReader reader;
+        private long itemIndex;
+
+        ResumeState(ItemReader itemReader, CheckpointReader reader, long itemIndex) {
+            this.itemReader = itemReader;
+            this.reader = reader;
+            this.itemIndex = itemIndex;
+        }
+    }
+
+    // 末尾の要素の開始タグをバイト列から探せる item root path か確かめる
+    private static PathIterator splittableLeaf(ItemRootXPath itemRootPath) throws ParseException {
+        final var leaf = itemRootPath.getIterator().getLeaf();
+        if (leaf.getLocalName() == null || leaf.isPositional()) {
+            throw new ParseException("item root path must end with a named element without a position to be split: "
+                                     + itemRootPath);
+        }
+        return leaf;
+    }
+
+    private ChunkEnvelope readEnvelope(Path file, PathIterator leaf) throws IOException, XMLStreamException {
+        try (final var in = Files.newInputStream(file)) {
+            return readEnvelope(in, leaf.getNamespaceURI(), leaf.getLocalName());
+        }
+    }
+
+    // 文書の宣言と、ルート要素の名前空間宣言を各チャンクに引き継ぐ。
+    // item の要素の開始タグは、ルート要素で宣言された文書側の接頭辞で探す。in はルート要素の開始タグまで読めれば良い
+    ChunkEnvelope readEnvelope(InputStream in, String itemNamespaceURI, String itemLocalName)
+            throws XMLStreamException {
+        final var reader = xmlInputFactory.createXMLStreamReader(in);
+        try {
+            var encoding = reader.getCharacterEncodingScheme();
+            if (encoding == null) {
+                encoding = reader.getEncoding() == null ? "UTF-8" : reader.getEncoding();
+            }
+            final var charset = Charset.forName(encoding);
+            if (!Arrays.equals("<".getBytes(charset), new byte[] { '<' })) {
+                throw new XMLStreamException("encoding is not ASCII compatible: " + encoding);
+            }
+
+            final var header = new StringBuilder()
+                    .append("<?xml version=\"1.0\" encoding=\"").append(encoding).append("\"?>")
+                    .append('<').append(CHUNK_ROOT);
+            String itemPrefix = itemNamespaceURI.isEmpty() ? "" : null;
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+                        final var prefix = reader.getNamespacePrefix(i);
+                        if (itemPrefix == null && itemNamespaceURI.equals(reader.getNamespaceURI(i))) {
+                            itemPrefix = prefix == null ? "" : prefix;
+                        }
+                        header.append(" xmlns");
+                        if (prefix != null && !prefix.isEmpty()) {
+                            header.append(':').append(prefix);
+                        }
+                        header.append("=\"")
+                              .append(reader.getNamespaceURI(i)
+                                            .replace("&", "&amp;")
+                                            .replace("<", "&lt;")
+                                            .replace("\"", "&quot;"))
+                              .append('"');
+                    }
+                    break;
+                }
+            }
+            header.append('>');
+            if (itemPrefix == null) {
+                throw new XMLStreamException("namespace of the item element is not declared on the root element: "
+                                             + itemNamespaceURI);
+            }
+
+            final var itemTag = itemPrefix.isEmpty() ? itemLocalName : itemPrefix + ':' + itemLocalName;
+            return new ChunkEnvelope(header.toString().getBytes(charset),
+                                     ("</" + CHUNK_ROOT + '>').getBytes(charset),
+                                     ('<' + itemTag).getBytes(charset));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Value
+    static class ChunkEnvelope {
+        byte[] header;
+        byte[] footer;
+        byte[] itemTag;
+    }
+
+    private static Flowable<Node<XPath>> generate(Supplier<ItemReader> itemReaderSupplier) {
+        return generate(itemReaderSupplier, ItemReader::next);
+    }
+
+    // read が null を返すまで出力する
+    private static <T> Flowable<T> generate(Supplier<ItemReader> itemReaderSupplier, Function<ItemReader, T> read) {
+        return Flowable.generate(itemReaderSupplier, (ItemReader itemReader, Emitter<T> emitter) -> {
+            final var value = read.apply(itemReader);
+            if (value != null) {
+                emitter.onNext(value);
+            } else {
+                emitter.onComplete();
+            }
+        }, itemReader -> itemReader.getReader().close());
+    }
+
+    ItemReader createItemReader(XMLStreamReader reader, ItemRootXPath itemRootPath, CompiledRequest request,
+                                ParseOptions options) {
+        return createItemReader(reader, itemRootPath, itemRootPath.getIterator(), request, options);
+    }
+
+    ItemReader createItemReader(XMLStreamReader reader, ItemRootXPath itemRootPath, PathIterator itemRootIterator,
+                                CompiledRequest request, ParseOptions options) {
+        return new ItemReader(reader, itemRootIterator, request, options)
+                .filter(options.getFilter(), itemRootPath.getNamespaces())
+                .listen(listener);
+    }
+
+    XMLStreamReader createChunkReader(InputStream in) throws XMLStreamException {
+        return ListeningStreamReader.wrap(xmlInputFactory.createXMLStreamReader(in), listener);
+    }
+
+    private XMLStreamReader createReader(InputStream in) throws ParseException {
+        try {
+            return ListeningStreamReader.wrap(xmlInputFactory.createXMLStreamReader(in), listener);
+        } catch (XMLStreamException e) {
+            throw new ParseException("failed to create XMLStreamReader", e);
+        }
+    }
+}
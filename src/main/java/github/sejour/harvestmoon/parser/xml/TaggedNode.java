@@ -0,0 +1,14 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import lombok.Value;
+
+@Value
+public class TaggedNode {
+    // queries の中の位置。同じ Query が複数回指定された場合も区別できる
+    int queryIndex;
+    Query query;
+    Node<XPath> node;
+}
@@ -0,0 +1,7 @@
+package github.sejour.harvestmoon.path.xml;
+
+// XMLStreamReader や StartElement 以外の形で保持している要素の属性を、PathIterator の条件に渡すためのもの
+public interface AttributeLookup {
+    // 属性が存在しない場合は null を返す
+    String getAttributeValue(String namespaceURI, String localName);
+}
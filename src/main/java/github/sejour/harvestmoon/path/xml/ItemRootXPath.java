@@ -1,5 +1,7 @@
 package github.sejour.harvestmoon.path.xml;
 
+import java.util.Map;
+
 import github.sejour.harvestmoon.path.Path;
 
 import lombok.Getter;
@@ -11,22 +13,32 @@ public class ItemRootXPath implements Path {
     @Getter
     private final String expression;
 
+    // 接頭辞から名前空間 URI への対応。子要素の XPath の接頭辞もこれで解決する
+    @Getter
+    private final Map<String, String> namespaces;
+
     public ItemRootXPath(String expression) {
+        this(expression, Map.of());
+    }
+
+    public ItemRootXPath(String expression, Map<String, String> namespaces) {
         this.expression = expression;
-        iterator = PathIterator.fromAbsoluteXPath(expression);
+        this.namespaces = Map.copyOf(namespaces);
+        iterator = PathIterator.compile(expression, this.namespaces);
     }
 
     @Override
     public boolean equals(Object other) {
         if (other instanceof ItemRootXPath) {
-            return expression.equals(other.toString());
+            return expression.equals(other.toString())
+                   && namespaces.equals(((ItemRootXPath) other).namespaces);
         }
         return false;
     }
 
     @Override
     public int hashCode() {
-        return expression.hashCode();
+        return expression.hashCode() * 31 + namespaces.hashCode();
     }
 
     @Override
@@ -1,63 +1,267 @@
 package github.sejour.harvestmoon.path.xml;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Optional;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.StartElement;
 
 import org.apache.commons.lang3.StringUtils;
 
-import com.google.common.collect.ImmutableMap;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
+import lombok.AccessLevel;
 import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 import lombok.Value;
 
+/**
+ * One step of a path, evaluated against the start tags of a forward only stream.
+ * Supports names, {@code *}, {@code //} descent, predicates on attributes ({@code and}, {@code or}, {@code not()},
+ * existence, {@code =}, {@code starts-with()} and {@code contains()}), a position predicate such as {@code [1]},
+ * {@code |} unions, and a trailing {@code text()} step (see {@link #selectsText(String)}).
+ * As with the other steps, elements inside a matched element are not searched again by the same iterator, so a union
+ * where an alternative can select an element inside one selected by another (such as {@code /r/x | /r/x/y},
+ * {@code //x | /r/x/y} or {@code //a | //b}) is marked {@link #isNested() nested}.
+ * {@link XPathStreamReader} serializes one matched element at a time and rejects nested unions, while
+ * {@code StreamParser} follows each alternative of a nested union separately and emits every element once,
+ * in document order.
+ */
 @Value
-@Builder
 public class PathIterator {
     private static final Pattern NODE_PATTERN = Pattern
             .compile("^(?<name>[^\\[]+)(?<conditions>\\[.+])?$");
+    private static final String TEXT_STEP = "text()";
     public static final PathIterator MATCHED = builder().build();
+    private static final int CACHE_SIZE = 1024;
+    // union の各選択肢の遷移。3 進数の桁として組み合わせて long に収めるため、選択肢は MAX_ALTERNATIVES 個まで
+    private static final int DEAD = 0;
+    private static final int STAY = 1;
+    private static final int ADVANCE = 2;
+    private static final int MAX_ALTERNATIVES = 39;
+    private static final int MAX_CACHED_ALTERNATIVES = 6;
+    // PathIterator は不変なので、パースした結果をスレッド間で共有する
+    private static final Cache<CacheKey, PathIterator> CACHE = CacheBuilder.newBuilder()
+                                                                          .maximumSize(CACHE_SIZE)
+                                                                          .build();
 
     String name;
     AttributeCondition attributeCondition;
+    // 1 以上の場合は、同じ親の中で name と attributeCondition に一致した要素のうち、その番目のものだけに一致する
+    int position;
     PathIterator child;
     boolean fallThrowable;
+    // null でない場合は、いずれかの iterator に一致する (union)
+    PathIterator[] alternatives;
+    // union の選択肢が、他の選択肢に一致した要素の中の要素に一致しうるかどうか
+    boolean nested;
+
+    // name を事前に解決したもの。null の場合は任意の要素にマッチする
+    String namespaceURI;
+    String localName;
+    // next に PositionCounter を渡す必要があるかどうか
+    boolean positional;
+    // union の遷移の組から次の iterator への対応。要素毎に iterator を作らないように、初めて使うときに埋める
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    PathIterator[] transitions;
+
+    @Builder
+    private PathIterator(String name, AttributeCondition attributeCondition, int position, PathIterator child,
+                         boolean fallThrowable, PathIterator[] alternatives, boolean nested) {
+        this.name = name;
+        this.attributeCondition = attributeCondition;
+        this.position = position;
+        this.child = child;
+        this.fallThrowable = fallThrowable;
+        this.alternatives = alternatives;
+        this.nested = nested;
+
+        if (StringUtils.isEmpty(name) || name.equals("*")) {
+            namespaceURI = null;
+            localName = null;
+        } else {
+            final var qName = QName.valueOf(name);
+            namespaceURI = qName.getNamespaceURI().intern();
+            localName = qName.getLocalPart().intern();
+        }
+
+        positional = position > 0
+                     || alternatives != null && Arrays.stream(alternatives).anyMatch(PathIterator::isPositional);
+        transitions = alternatives != null && alternatives.length <= MAX_CACHED_ALTERNATIVES
+                      ? new PathIterator[(int) Math.pow(3, alternatives.length)]
+                      : null;
+    }
 
     public static PathIterator fromAbsoluteXPath(String expression) {
+        return fromAbsoluteXPath(expression, Map.of());
+    }
+
+    // fromAbsoluteXPath と同じだが、最近使われた式のパース結果を再利用する。namespaces は不変でなければならない
+    public static PathIterator compile(String expression, Map<String, String> namespaces) {
+        final var key = new CacheKey(expression, namespaces);
+        var iterator = CACHE.getIfPresent(key);
+        if (iterator == null) {
+            // 同時に同じ式をパースしても結果は等しいので、どちらを残しても良い
+            iterator = fromAbsoluteXPath(expression, namespaces);
+            CACHE.put(key, iterator);
+        }
+        return iterator;
+    }
+
+    @Value
+    private static class CacheKey {
+        String expression;
+        Map<String, String> namespaces;
+    }
+
+    // namespaces は接頭辞から名前空間 URI への対応。"" は接頭辞のない要素名の名前空間とする
+    public static PathIterator fromAbsoluteXPath(String expression, Map<String, String> namespaces) {
         if (StringUtils.isBlank(expression)) {
             throw new RuntimeException("blank");
         }
 
-        final var div = expression.split("/", 2);
+        final var alternatives = split(expression, '|', 0);
+        if (alternatives.size() > MAX_ALTERNATIVES) {
+            throw new RuntimeException("too many alternatives: " + expression);
+        }
+        if (alternatives.size() > 1) {
+            final var iterators = alternatives.stream()
+                                              .map(alternative -> fromAbsoluteXPath(alternative.trim(),
+                                                                                    namespaces))
+                                              .toArray(PathIterator[]::new);
+            var nested = false;
+            for (int i = 0; i < iterators.length && !nested; ++i) {
+                for (int j = 0; j < iterators.length && !nested; ++j) {
+                    nested = i != j && selectsInside(iterators[i], iterators[j]);
+                }
+            }
+            return builder().alternatives(iterators).nested(nested).build();
+        }
+
+        final var div = splitStep(expression.trim());
         if (StringUtils.isNotBlank(div[0])) {
-            return parse(expression);
+            return parse(expression.trim(), namespaces);
         }
 
         if (div.length > 1) {
             if (StringUtils.isBlank(div[1]) || div[1].equals("*")) {
                 return builder().child(MATCHED).fallThrowable(true).build();
             }
-            return parse(div[1]);
+            return parse(div[1], namespaces);
         }
 
         throw new RuntimeException("invalid");
     }
 
-    private static PathIterator parse(String expression) {
+    // outer に一致した要素の中の要素に inner が一致しうる場合は true を返す。
+    // 名前が一致しうる要素を1つずつ与えて2つの iterator を同時に進め、述語は一致する場合としない場合の両方を調べる
+    private static boolean selectsInside(PathIterator outer, PathIterator inner) {
+        final var visited = new HashSet<List<PathIterator>>();
+        final var pending = new ArrayDeque<List<PathIterator>>();
+        pending.push(List.of(outer, inner));
+        while (!pending.isEmpty()) {
+            final var state = pending.pop();
+            if (!visited.add(state)) {
+                continue;
+            }
+            final var a = state.get(0);
+            final var b = state.get(1);
+            for (final var element : candidateElements(a, b)) {
+                for (final var nextA : nextCandidates(a, element)) {
+                    for (final var nextB : nextCandidates(b, element)) {
+                        if (nextB != MATCHED) {
+                            pending.push(List.of(nextA, nextB));
+                        } else if (a == MATCHED) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // 名前で区別される要素の候補。null はどちらの名前にも一致しない要素を表す
+    private static List<PathIterator> candidateElements(PathIterator a, PathIterator b) {
+        final var elements = new ArrayList<PathIterator>(3);
+        if (a.localName != null) {
+            elements.add(a);
+        }
+        if (b.localName != null) {
+            elements.add(b);
+        }
+        elements.add(null);
+        return elements;
+    }
+
+    // element の名前を持つ要素を読んだときに iterator がなりうるもの。一致しなくなる場合は含めない
+    private static List<PathIterator> nextCandidates(PathIterator iterator, PathIterator element) {
+        if (iterator == MATCHED) {
+            return List.of(MATCHED);
+        }
+        final var nexts = new ArrayList<PathIterator>(2);
+        final var nameMatched = iterator.localName == null
+                                || element != null && matchName(iterator.namespaceURI, iterator.localName,
+                                                                element.namespaceURI, element.localName);
+        if (nameMatched) {
+            nexts.add(iterator.child);
+        }
+        if ((!nameMatched || iterator.attributeCondition != null || iterator.position > 0)
+            && iterator.fallThrowable) {
+            nexts.add(iterator);
+        }
+        return nexts;
+    }
+
+    // 最後のステップが text() の場合は true を返す。
+    // その場合 iterator は text() の親の要素に一致するので、呼び出し側はその要素の直下のテキストを選択する
+    public static boolean selectsText(String expression) {
+        final var alternatives = split(expression, '|', 0);
+        final var count = alternatives
+                .stream()
+                .map(String::trim)
+                .filter(alternative -> alternative.endsWith('/' + TEXT_STEP)
+                                       && !alternative.endsWith("//" + TEXT_STEP))
+                .count();
+        if (count > 0 && count < alternatives.size()) {
+            throw new RuntimeException("text() must be selected by every alternative: " + expression);
+        }
+        return count > 0;
+    }
+
+    // selectsText が true の式から末尾の text() を除き、その親の要素を選ぶ式にする
+    public static String withoutTextStep(String expression) {
+        return split(expression, '|', 0)
+                .stream()
+                .map(String::trim)
+                .map(alternative -> alternative.endsWith('/' + TEXT_STEP)
+                                    ? alternative.substring(0, alternative.length() - TEXT_STEP.length() - 1)
+                                    : alternative)
+                .collect(Collectors.joining(" | "));
+    }
+
+    private static PathIterator parse(String expression, Map<String, String> namespaces) {
         var name = "";
         AttributeCondition attributeCondition = null;
+        var position = 0;
         PathIterator child = MATCHED;
 
         var div = new String[] { "", expression };
         int pathThrows = -1;
         while (div.length > 1 && (StringUtils.isBlank(div[0]) || div[0].equals("*"))) {
-            div = div[1].split("/", 2);
+            div = splitStep(div[1]);
             pathThrows += 1;
         }
 
@@ -72,42 +276,215 @@ public class PathIterator {
         }
 
         name = matcher.group("name");
+        if (name.equals(TEXT_STEP)) {
+            throw new RuntimeException("text() is only supported as the last step");
+        }
+        name = resolveName(name, namespaces, true);
+
         final var condition = matcher.group("conditions");
         if (StringUtils.isNotBlank(condition)) {
-            attributeCondition = AttributeCondition.parse(condition);
+            final var conditions = new ArrayList<AttributeCondition>();
+            for (final var predicate : splitPredicates(condition)) {
+                if (StringUtils.isNumeric(predicate)) {
+                    if (position > 0) {
+                        throw new RuntimeException("only one position predicate is supported: " + div[0]);
+                    }
+                    position = Integer.parseInt(predicate);
+                } else if (position > 0) {
+                    throw new RuntimeException("predicates after a position are not supported: " + div[0]);
+                } else {
+                    conditions.add(AttributeCondition.parse(predicate, namespaces));
+                }
+            }
+            if (conditions.size() == 1) {
+                attributeCondition = conditions.get(0);
+            } else if (conditions.size() > 1) {
+                attributeCondition = new AttributeAndCondition(conditions.toArray(AttributeCondition[]::new));
+            }
         }
 
-        if (div.length > 1 && !div[1].isEmpty()) {
-            child = parse(div[1]);
+        if (div.length > 1 && !div[1].isEmpty() && !div[1].equals(TEXT_STEP)) {
+            child = parse(div[1], namespaces);
         }
 
         return PathIterator
                 .builder()
                 .name(name)
                 .attributeCondition(attributeCondition)
+                .position(position)
                 .child(child)
                 .fallThrowable(pathThrows > 0)
                 .build();
     }
 
+    // 接頭辞を namespaces で解決して {namespaceURI}localName の形にする。
+    // namespaces が空の場合は、名前空間を扱わないリーダーのために接頭辞付きの名前のまま残す
+    public static String resolveName(String name, Map<String, String> namespaces, boolean element) {
+        if (namespaces.isEmpty() || name.startsWith("{") || name.equals("*")) {
+            return name;
+        }
+
+        final var colon = name.indexOf(':');
+        if (colon < 0) {
+            // XPath と同じく、属性名は接頭辞がなければ名前空間を持たない
+            final var defaultNamespaceURI = element ? namespaces.get("") : null;
+            return defaultNamespaceURI == null ? name : '{' + defaultNamespaceURI + '}' + name;
+        }
+
+        final var namespaceURI = namespaces.get(name.substring(0, colon));
+        if (namespaceURI == null) {
+            throw new RuntimeException("unknown namespace prefix: " + name);
+        }
+        return '{' + namespaceURI + '}' + name.substring(colon + 1);
+    }
+
+    // 述語の中や {namespaceURI} の中にある '/' では区切らない
+    private static String[] splitStep(String expression) {
+        return split(expression, '/', 2).toArray(String[]::new);
+    }
+
+    // "[a][b]" を "a", "b" に分ける
+    private static List<String> splitPredicates(String conditions) {
+        final var predicates = new ArrayList<String>();
+        var depth = 0;
+        var quote = 0;
+        var start = 0;
+        for (int i = 0; i < conditions.length(); ++i) {
+            final var c = conditions.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '[') {
+                if (depth++ == 0) {
+                    start = i + 1;
+                }
+            } else if (c == ']' && --depth == 0) {
+                predicates.add(conditions.substring(start, i).trim());
+            }
+        }
+        if (depth != 0 || quote != 0) {
+            throw new RuntimeException("unbalanced predicate: " + conditions);
+        }
+        return predicates;
+    }
+
+    // 括弧と引用符の外にある delimiter で区切る。limit が 0 より大きい場合は最大 limit 個に分ける
+    private static List<String> split(String expression, char delimiter, int limit) {
+        final var parts = new ArrayList<String>();
+        var depth = 0;
+        var quote = 0;
+        var start = 0;
+        for (int i = 0; i < expression.length(); ++i) {
+            final var c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '[' || c == '{' || c == '(') {
+                ++depth;
+            } else if (c == ']' || c == '}' || c == ')') {
+                --depth;
+            } else if (c == delimiter && depth == 0 && (limit <= 0 || parts.size() < limit - 1)) {
+                parts.add(expression.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(expression.substring(start));
+        return parts;
+    }
+
+    public PathIterator getLeaf() {
+        var iterator = this;
+        while (iterator.child != null && iterator.child != MATCHED) {
+            iterator = iterator.child;
+        }
+        return iterator;
+    }
+
     public PathIterator next(StartElement element) {
+        return next(element, null);
+    }
+
+    public PathIterator next(XMLStreamReader reader) {
+        return next(reader, null);
+    }
+
+    public PathIterator next(String elementNamespaceURI, String elementLocalName, AttributeLookup attributes) {
+        return next(elementNamespaceURI, elementLocalName, attributes, null);
+    }
+
+    // counter は、isPositional な iterator の場合に、親要素毎に用意して渡す
+    public PathIterator next(StartElement element, PositionCounter counter) {
+        if (alternatives != null) {
+            var code = 0L;
+            var weight = 1L;
+            for (final var alternative : alternatives) {
+                code += weight * transition(alternative, alternative.next(element, counter));
+                weight *= 3;
+            }
+            return nextAlternative(code);
+        }
         if (this == MATCHED) {
             return MATCHED;
         }
 
-        if (StringUtils.isEmpty(name) || element.getName().toString().equals(name)) {
-            if (attributeCondition == null) {
-                return child;
+        final var elementName = element.getName();
+        return next(matchName(elementName.getNamespaceURI(), elementName.getLocalPart())
+                    && (attributeCondition == null || attributeCondition.match(element)), counter);
+    }
+
+    public PathIterator next(XMLStreamReader reader, PositionCounter counter) {
+        if (alternatives != null) {
+            var code = 0L;
+            var weight = 1L;
+            for (final var alternative : alternatives) {
+                code += weight * transition(alternative, alternative.next(reader, counter));
+                weight *= 3;
             }
+            return nextAlternative(code);
+        }
+        if (this == MATCHED) {
+            return MATCHED;
+        }
 
-            final var attrIterator = element.getAttributes();
-            final var mapBuilder = ImmutableMap.<String, String>builder();
-            while (attrIterator.hasNext()) {
-                final var attr = attrIterator.next();
-                mapBuilder.put(attr.getName().toString(), attr.getValue());
+        return next(matchName(reader.getNamespaceURI(), reader.getLocalName())
+                    && (attributeCondition == null || attributeCondition.match(reader)), counter);
+    }
+
+    public PathIterator next(String elementNamespaceURI, String elementLocalName, AttributeLookup attributes,
+                             PositionCounter counter) {
+        if (alternatives != null) {
+            var code = 0L;
+            var weight = 1L;
+            for (final var alternative : alternatives) {
+                code += weight * transition(alternative, alternative.next(elementNamespaceURI, elementLocalName,
+                                                                          attributes, counter));
+                weight *= 3;
             }
+            return nextAlternative(code);
+        }
+        if (this == MATCHED) {
+            return MATCHED;
+        }
+
+        return next(matchName(elementNamespaceURI, elementLocalName)
+                    && (attributeCondition == null || attributeCondition.match(attributes)), counter);
+    }
 
-            if (attributeCondition.match(mapBuilder.build())) {
+    private PathIterator next(boolean matched, PositionCounter counter) {
+        if (matched) {
+            if (position == 0) {
+                return child;
+            }
+            if (counter == null) {
+                throw new IllegalStateException("position predicate requires a PositionCounter");
+            }
+            if (counter.increment(this) == position) {
                 return child;
             }
         }
@@ -118,61 +495,445 @@ public class PathIterator {
 
         return null;
     }
+
+    private static int transition(PathIterator iterator, PathIterator next) {
+        return next == null ? DEAD : next == iterator ? STAY : ADVANCE;
+    }
+
+    // code は選択肢毎の transition を 3 進数の桁 (先頭の選択肢が最下位) にしたもの。
+    // 位置の述語の数を揃えるため、一致した iterator があっても全ての iterator を評価してから呼ぶ
+    private PathIterator nextAlternative(long code) {
+        if (code == DEAD) {
+            return null;
+        }
+        if (transitions == null) {
+            return resolveAlternative(code);
+        }
+        var next = transitions[(int) code];
+        if (next == null) {
+            // 同時に作っても結果は等しく、PathIterator は不変なので、どちらを残しても良い
+            next = resolveAlternative(code);
+            transitions[(int) code] = next;
+        }
+        return next;
+    }
+
+    private PathIterator resolveAlternative(long code) {
+        final var nexts = new PathIterator[alternatives.length];
+        var count = 0;
+        var unchanged = true;
+        for (final var alternative : alternatives) {
+            final var transition = (int) (code % 3);
+            code /= 3;
+            unchanged &= transition == STAY;
+            if (transition == DEAD) {
+                continue;
+            }
+            final var nextIterator = transition == STAY ? alternative : alternative.child;
+            if (nextIterator == MATCHED) {
+                return MATCHED;
+            }
+            nexts[count++] = nextIterator;
+        }
+
+        if (unchanged) {
+            return this;
+        }
+        if (count == 1) {
+            return nexts[0];
+        }
+        return builder().alternatives(Arrays.copyOf(nexts, count)).nested(nested).build();
+    }
+
+    private boolean matchName(String elementNamespaceURI, String elementLocalName) {
+        if (localName == null) {
+            return true;
+        }
+        return matchName(namespaceURI, localName, elementNamespaceURI, elementLocalName);
+    }
+
+    // パーサーのシンボルテーブルで intern されている場合は参照の比較だけで済む
+    public static boolean matchName(String namespaceURI, String localName,
+                                    String elementNamespaceURI, String elementLocalName) {
+        if (localName != elementLocalName && !localName.equals(elementLocalName)) {
+            return false;
+        }
+        if (elementNamespaceURI == null) {
+            return namespaceURI.isEmpty();
+        }
+        return namespaceURI == elementNamespaceURI || namespaceURI.equals(elementNamespaceURI);
+    }
 }
 
 interface AttributeCondition {
-    boolean match(Map<String, String> attribute);
-
-    Pattern EQUALS_PATTERN = Pattern
-            .compile("^@(?<name>.+)=(('(?<single>.+)')|(\"(?<double>.+)\"))$");
-
-    static AttributeCondition parse(String expression) {
-        final List<AttributeCondition> conditions = Arrays
-                .stream(StringUtils.substringsBetween(expression, "[", "]"))
-                .map(exp -> {
-                    final var expTrimmed = StringUtils.trim(exp);
-                    // TODO: Support 'and', 'or'
-                    final var equalsMatcher = EQUALS_PATTERN.matcher(expTrimmed);
-                    if (equalsMatcher.find()) {
-                        return AttributeEqualsCondition
-                                .builder()
-                                .name(equalsMatcher.group("name"))
-                                .value(Optional.ofNullable(equalsMatcher.group("single"))
-                                               .orElseGet(() -> equalsMatcher.group("double")))
-                                .build();
-                    }
-                    return null;
-                })
-                .filter(Objects::nonNull)
-                .collect(Collectors.toList());
+    boolean match(StartElement element);
+    boolean match(XMLStreamReader reader);
+    boolean match(AttributeLookup attributes);
 
-        return new AttributeAndCondition(conditions);
+    // [] の中身を1つ解釈する
+    static AttributeCondition parse(String predicate, Map<String, String> namespaces) {
+        return new ConditionParser(predicate, namespaces).parse();
+    }
+}
+
+/**
+ * Recursive descent parser of a predicate.
+ * <pre>
+ * or      := and ('or' and)*
+ * and     := unary ('and' unary)*
+ * unary   := 'not' '(' or ')' | '(' or ')' | primary
+ * primary := '@' name ('=' literal)? | ('starts-with' | 'contains') '(' '@' name ',' literal ')'
+ * </pre>
+ */
+class ConditionParser {
+    private final String predicate;
+    private final Map<String, String> namespaces;
+    private int position;
+
+    ConditionParser(String predicate, Map<String, String> namespaces) {
+        this.predicate = predicate;
+        this.namespaces = namespaces;
+    }
+
+    AttributeCondition parse() {
+        final var condition = parseOr();
+        skipSpaces();
+        if (position < predicate.length()) {
+            throw error();
+        }
+        return condition;
+    }
+
+    private AttributeCondition parseOr() {
+        final var conditions = new ArrayList<AttributeCondition>();
+        conditions.add(parseAnd());
+        while (acceptKeyword("or")) {
+            conditions.add(parseAnd());
+        }
+        return conditions.size() == 1
+               ? conditions.get(0)
+               : new AttributeOrCondition(conditions.toArray(AttributeCondition[]::new));
+    }
+
+    private AttributeCondition parseAnd() {
+        final var conditions = new ArrayList<AttributeCondition>();
+        conditions.add(parseUnary());
+        while (acceptKeyword("and")) {
+            conditions.add(parseUnary());
+        }
+        return conditions.size() == 1
+               ? conditions.get(0)
+               : new AttributeAndCondition(conditions.toArray(AttributeCondition[]::new));
+    }
+
+    private AttributeCondition parseUnary() {
+        if (acceptKeyword("not")) {
+            expect('(');
+            final var condition = parseOr();
+            expect(')');
+            return new AttributeNotCondition(condition);
+        }
+        if (accept('(')) {
+            final var condition = parseOr();
+            expect(')');
+            return condition;
+        }
+        if (acceptKeyword("starts-with")) {
+            final var name = parseFunctionArguments();
+            return AttributeStartsWithCondition.builder().name(name[0]).value(name[1]).build();
+        }
+        if (acceptKeyword("contains")) {
+            final var name = parseFunctionArguments();
+            return AttributeContainsCondition.builder().name(name[0]).value(name[1]).build();
+        }
+
+        final var name = parseAttributeName();
+        if (accept('=')) {
+            return AttributeEqualsCondition.builder().name(name).value(parseLiteral()).build();
+        }
+        return AttributeExistsCondition.builder().name(name).build();
+    }
+
+    // (@name, 'value') を読む
+    private String[] parseFunctionArguments() {
+        expect('(');
+        final var name = parseAttributeName();
+        expect(',');
+        final var value = parseLiteral();
+        expect(')');
+        return new String[] { name, value };
+    }
+
+    private String parseAttributeName() {
+        expect('@');
+        final var start = position;
+        if (position < predicate.length() && predicate.charAt(position) == '{') {
+            position = predicate.indexOf('}', position);
+            if (position < 0) {
+                throw error();
+            }
+            ++position;
+        }
+        while (position < predicate.length() && isNameChar(predicate.charAt(position))) {
+            ++position;
+        }
+        if (start == position) {
+            throw error();
+        }
+        return PathIterator.resolveName(predicate.substring(start, position), namespaces, false);
+    }
+
+    private String parseLiteral() {
+        skipSpaces();
+        if (position >= predicate.length()) {
+            throw error();
+        }
+        final var quote = predicate.charAt(position);
+        if (quote != '\'' && quote != '"') {
+            throw error();
+        }
+        final var end = predicate.indexOf(quote, position + 1);
+        if (end < 0) {
+            throw error();
+        }
+        final var literal = predicate.substring(position + 1, end);
+        position = end + 1;
+        return literal;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        skipSpaces();
+        final var end = position + keyword.length();
+        if (!predicate.startsWith(keyword, position)
+            || end < predicate.length() && isNameChar(predicate.charAt(end))) {
+            return false;
+        }
+        position = end;
+        return true;
+    }
+
+    private boolean accept(char c) {
+        skipSpaces();
+        if (position < predicate.length() && predicate.charAt(position) == c) {
+            ++position;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!accept(c)) {
+            throw error();
+        }
+    }
+
+    private void skipSpaces() {
+        while (position < predicate.length() && Character.isWhitespace(predicate.charAt(position))) {
+            ++position;
+        }
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+    }
+
+    private RuntimeException error() {
+        return new RuntimeException("unsupported predicate: [" + predicate + "] at " + position);
     }
 }
 
 @Value
 class AttributeAndCondition implements AttributeCondition {
-    List<AttributeCondition> conditions;
+    AttributeCondition[] conditions;
+
+    @Override
+    public boolean match(StartElement element) {
+        for (final var condition : conditions) {
+            if (!condition.match(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean match(XMLStreamReader reader) {
+        for (final var condition : conditions) {
+            if (!condition.match(reader)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean match(AttributeLookup attributes) {
+        for (final var condition : conditions) {
+            if (!condition.match(attributes)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
+
+@Value
+class AttributeOrCondition implements AttributeCondition {
+    AttributeCondition[] conditions;
+
+    @Override
+    public boolean match(StartElement element) {
+        for (final var condition : conditions) {
+            if (condition.match(element)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean match(XMLStreamReader reader) {
+        for (final var condition : conditions) {
+            if (condition.match(reader)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean match(AttributeLookup attributes) {
+        for (final var condition : conditions) {
+            if (condition.match(attributes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+@Value
+class AttributeNotCondition implements AttributeCondition {
+    AttributeCondition condition;
+
+    @Override
+    public boolean match(StartElement element) {
+        return !condition.match(element);
+    }
+
+    @Override
+    public boolean match(XMLStreamReader reader) {
+        return !condition.match(reader);
+    }
+
+    @Override
+    public boolean match(AttributeLookup attributes) {
+        return !condition.match(attributes);
+    }
+}
+
+// 1つの属性の値についての条件。属性が存在しない場合は null の値で判定する
+interface AttributeValueCondition extends AttributeCondition {
+    QName getQName();
+
+    boolean matchValue(String value);
+
+    @Override
+    default boolean match(StartElement element) {
+        final var attribute = element.getAttributeByName(getQName());
+        return matchValue(attribute == null ? null : attribute.getValue());
+    }
+
+    @Override
+    default boolean match(XMLStreamReader reader) {
+        final var namespaceURI = getQName().getNamespaceURI();
+        final var localName = getQName().getLocalPart();
+        final var attributeCount = reader.getAttributeCount();
+        for (int i = 0; i < attributeCount; ++i) {
+            if (PathIterator.matchName(namespaceURI, localName,
+                                       reader.getAttributeNamespace(i), reader.getAttributeLocalName(i))) {
+                return matchValue(reader.getAttributeValue(i));
+            }
+        }
+        return matchValue(null);
+    }
+
+    @Override
+    default boolean match(AttributeLookup attributes) {
+        return matchValue(attributes.getAttributeValue(getQName().getNamespaceURI(), getQName().getLocalPart()));
+    }
+}
+
+@Value
+class AttributeEqualsCondition implements AttributeValueCondition {
+    String name;
+    String value;
+    QName qName;
+
+    @Builder
+    private AttributeEqualsCondition(String name, String value) {
+        this.name = name;
+        this.value = value;
+        qName = QName.valueOf(name);
+    }
 
     @Override
-    public boolean match(Map<String, String> attribute) {
-        return conditions.stream().allMatch(cnd -> cnd.match(attribute));
+    public boolean matchValue(String attributeValue) {
+        return value.equals(attributeValue);
     }
 }
 
 @Value
-@Builder
-class AttributeEqualsCondition implements AttributeCondition {
+class AttributeExistsCondition implements AttributeValueCondition {
+    String name;
+    QName qName;
+
+    @Builder
+    private AttributeExistsCondition(String name) {
+        this.name = name;
+        qName = QName.valueOf(name);
+    }
+
+    @Override
+    public boolean matchValue(String attributeValue) {
+        return attributeValue != null;
+    }
+}
+
+@Value
+class AttributeStartsWithCondition implements AttributeValueCondition {
     String name;
     String value;
+    QName qName;
+
+    @Builder
+    private AttributeStartsWithCondition(String name, String value) {
+        this.name = name;
+        this.value = value;
+        qName = QName.valueOf(name);
+    }
 
     @Override
-    public boolean match(Map<String, String> attribute) {
-        final var value = attribute.get(name);
-        if (value == null) {
-            return false;
-        }
-        return value.equals(this.value);
+    public boolean matchValue(String attributeValue) {
+        return attributeValue != null && attributeValue.startsWith(value);
     }
 }
 
+@Value
+class AttributeContainsCondition implements AttributeValueCondition {
+    String name;
+    String value;
+    QName qName;
+
+    @Builder
+    private AttributeContainsCondition(String name, String value) {
+        this.name = name;
+        this.value = value;
+        qName = QName.valueOf(name);
+    }
+
+    @Override
+    public boolean matchValue(String attributeValue) {
+        return attributeValue != null && attributeValue.contains(value);
+    }
+}
@@ -0,0 +1,29 @@
+package github.sejour.harvestmoon.path.xml;
+
+import java.util.Arrays;
+
+// 位置の述語 ([1] など) を評価するため、同じ親要素の中で名前と条件に一致した要素の数を iterator 毎に数える
+public class PositionCounter {
+    private PathIterator[] iterators = new PathIterator[1];
+    private int[] counts = new int[1];
+    private int size;
+
+    public static PositionCounter of(PathIterator iterator) {
+        return iterator.isPositional() ? new PositionCounter() : null;
+    }
+
+    int increment(PathIterator iterator) {
+        for (int i = 0; i < size; ++i) {
+            if (iterators[i] == iterator) {
+                return ++counts[i];
+            }
+        }
+        if (size == iterators.length) {
+            iterators = Arrays.copyOf(iterators, size * 2);
+            counts = Arrays.copyOf(counts, size * 2);
+        }
+        iterators[size] = iterator;
+        counts[size] = 1;
+        return counts[size++];
+    }
+}
@@ -0,0 +1,99 @@
+package github.sejour.harvestmoon.path.xml;
+
+import static github.sejour.harvestmoon.path.xml.PathIterator.MATCHED;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import github.sejour.harvestmoon.metrics.ListeningStreamReader;
+import github.sejour.harvestmoon.metrics.ParseListener;
+
+/**
+ * Pull style counterpart of {@link XPathStreamReader}.
+ * {@link #next()} stops the reader on the START_ELEMENT of each matched item, and the caller must consume
+ * the item up to its END_ELEMENT (e.g. with {@link #skip()}) before calling {@link #next()} again.
+ * A {@link PathIterator#isNested() nested} union is rejected, since elements inside an item are never searched.
+ */
+public class XPathStreamNavigator {
+    private final XMLStreamReader reader;
+    private final Deque<PathIterator> iterators = new ArrayDeque<>();
+    // iterators と同じ深さの要素毎の PositionCounter。位置の述語がない場合は null
+    private final List<PositionCounter> counters = new ArrayList<>();
+    private final ParseListener listener;
+
+    public XPathStreamNavigator(XMLStreamReader reader, PathIterator iterator) {
+        this(reader, iterator, ParseListener.NONE);
+    }
+
+    public XPathStreamNavigator(XMLStreamReader reader, PathIterator iterator, ParseListener listener) {
+        requireNotNested(iterator);
+        this.reader = reader;
+        this.listener = ListeningStreamReader.listenerOf(reader, listener);
+        push(iterator);
+    }
+
+    // 一致した要素の中は探さずに読み進めるため、入れ子の要素に一致しうる union は扱えない
+    static void requireNotNested(PathIterator iterator) {
+        if (iterator.isNested()) {
+            throw new RuntimeException("an alternative must not select elements inside another");
+        }
+    }
+
+    public XMLStreamReader getReader() {
+        return reader;
+    }
+
+    public boolean next() throws XMLStreamException {
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    final var nextIterator = iterators.element().next(reader, counters.get(counters.size() - 1));
+                    if (nextIterator == null) {
+                        skipElement(reader);
+                        listener.onSkip();
+                        continue;
+                    }
+                    if (nextIterator == MATCHED) {
+                        return true;
+                    }
+                    push(nextIterator);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    iterators.pop();
+                    counters.remove(counters.size() - 1);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private void push(PathIterator iterator) {
+        iterators.push(iterator);
+        counters.add(PositionCounter.of(iterator));
+    }
+
+    public void skip() throws XMLStreamException {
+        skipElement(reader);
+    }
+
+    public static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int down = 0;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT -> ++down;
+                case XMLStreamConstants.END_ELEMENT -> --down;
+            }
+            if (down < 0) {
+                return;
+            }
+        }
+    }
+}
@@ -2,41 +2,181 @@ package github.sejour.harvestmoon.path.xml;
 
 import static github.sejour.harvestmoon.path.xml.PathIterator.MATCHED;
 
-import java.util.function.Consumer;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
+import javax.xml.XMLConstants;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.StartElement;
 
+import github.sejour.harvestmoon.metrics.ParseListener;
+import github.sejour.harvestmoon.metrics.ParseListener.Phase;
+import github.sejour.harvestmoon.util.ByteBufferInputStream;
+import github.sejour.harvestmoon.util.MappedFileInputStream;
+
+import io.reactivex.rxjava3.core.Emitter;
+import io.reactivex.rxjava3.core.Flowable;
 import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.ObservableEmitter;
+import io.reactivex.rxjava3.functions.Supplier;
 
+/**
+ * Serializes each element selected by a {@link PathIterator} to a string, without searching inside it.
+ * {@link PathIterator#isNested() Nested} unions are rejected.
+ */
 public class XPathStreamReader {
     public static Observable<String> readAll(XMLEventReader reader, PathIterator iterator) {
+        XPathStreamNavigator.requireNotNested(iterator);
+        return Observable.create(emitter -> {
+            try {
+                goDown(reader, iterator, emitter);
+                emitter.onComplete();
+            } finally {
+                reader.close();
+            }
+        });
+    }
+
+    public static Observable<String> readAll(XMLStreamReader reader, PathIterator iterator) {
+        return readAll(reader, iterator, ParseListener.NONE);
+    }
+
+    public static Observable<String> readAll(XMLStreamReader reader, PathIterator iterator,
+                                             ParseListener listener) {
+        return readAll(reader, iterator, listener, 0, Long.MAX_VALUE);
+    }
+
+    // 先頭の offset 件の item は文字列にせずに読み飛ばし、limit 件を出力するか購読が解除された時点で reader を閉じる
+    public static Observable<String> readAll(XMLStreamReader reader, PathIterator iterator,
+                                             ParseListener listener, long offset, long limit) {
+        XPathStreamNavigator.requireNotNested(iterator);
         return Observable.create(emitter -> {
-            goDown(reader, iterator, emitter::onNext);
-            emitter.onComplete();
+            try {
+                final var navigator = new XPathStreamNavigator(reader, iterator, listener);
+                final var builder = new StringBuilder();
+                final var namespaces = new InheritedNamespaces();
+                for (var skipped = 0L; skipped < offset && navigator.next(); ++skipped) {
+                    navigator.skip();
+                }
+                for (var emitted = 0L; emitted < limit && !emitter.isDisposed() && navigator.next(); ++emitted) {
+                    builder.setLength(0);
+                    emitter.onNext(getDown(reader, builder, namespaces, listener));
+                }
+                emitter.onComplete();
+            } finally {
+                reader.close();
+            }
         });
     }
 
+    public static Observable<String> readAll(XMLInputFactory factory, Path file, PathIterator iterator) {
+        XPathStreamNavigator.requireNotNested(iterator);
+        return Observable.using(() -> new MappedFileInputStream(file),
+                                in -> readAll(factory.createXMLStreamReader(in), iterator),
+                                MappedFileInputStream::close);
+    }
+
+    public static Observable<String> readAll(XMLInputFactory factory, ByteBuffer buffer, PathIterator iterator) {
+        XPathStreamNavigator.requireNotNested(iterator);
+        return Observable.defer(() -> readAll(factory.createXMLStreamReader(new ByteBufferInputStream(buffer)),
+                                              iterator));
+    }
+
+    public static Flowable<String> readAllFlowable(XMLStreamReader reader, PathIterator iterator) {
+        return readAllFlowable(reader, iterator, ParseListener.NONE);
+    }
+
+    public static Flowable<String> readAllFlowable(XMLStreamReader reader, PathIterator iterator,
+                                                   ParseListener listener) {
+        return readAllFlowable(reader, iterator, listener, 0, Long.MAX_VALUE);
+    }
+
+    public static Flowable<String> readAllFlowable(XMLStreamReader reader, PathIterator iterator,
+                                                   ParseListener listener, long offset, long limit) {
+        XPathStreamNavigator.requireNotNested(iterator);
+        final Supplier<PagedNavigator> navigatorSupplier =
+                () -> new PagedNavigator(new XPathStreamNavigator(reader, iterator, listener), offset, limit);
+        return Flowable.generate(navigatorSupplier, (PagedNavigator navigator, Emitter<String> emitter) -> {
+            if (navigator.next()) {
+                navigator.builder.setLength(0);
+                emitter.onNext(getDown(reader, navigator.builder, navigator.namespaces, listener));
+            } else {
+                emitter.onComplete();
+            }
+        }, navigator -> reader.close());
+    }
+
+    // offset 件を読み飛ばしてから、limit 件まで item を探す
+    private static class PagedNavigator {
+        private final XPathStreamNavigator navigator;
+        // item を文字列にするためのバッファ。item 毎に使い回す
+        private final StringBuilder builder = new StringBuilder();
+        private final InheritedNamespaces namespaces = new InheritedNamespaces();
+        private long skip;
+        private long remaining;
+
+        PagedNavigator(XPathStreamNavigator navigator, long offset, long limit) {
+            this.navigator = navigator;
+            skip = offset;
+            remaining = limit;
+        }
+
+        boolean next() throws XMLStreamException {
+            for (; skip > 0; --skip) {
+                if (!navigator.next()) {
+                    return false;
+                }
+                navigator.skip();
+            }
+            if (remaining == 0 || !navigator.next()) {
+                return false;
+            }
+            --remaining;
+            return true;
+        }
+    }
+
+    private static String getDown(XMLStreamReader reader, StringBuilder builder, InheritedNamespaces namespaces,
+                                  ParseListener listener) throws XMLStreamException {
+        if (listener == ParseListener.NONE) {
+            return getDown(reader, builder, namespaces);
+        }
+        final var start = System.nanoTime();
+        final var item = getDown(reader, builder, namespaces);
+        listener.onPhase(Phase.SERIALIZE, System.nanoTime() - start);
+        return item;
+    }
+
+    // 購読が解除された場合は、残りを読まずに戻る
     private static void goDown(XMLEventReader reader, PathIterator iterator,
-                               Consumer<String> itemConsumer) throws XMLStreamException {
-        while (reader.hasNext()) {
+                               ObservableEmitter<String> emitter) throws XMLStreamException {
+        final var counter = PositionCounter.of(iterator);
+        while (!emitter.isDisposed() && reader.hasNext()) {
             final var event = reader.nextEvent();
 
             switch (event.getEventType()) {
                 case XMLStreamConstants.START_ELEMENT:
                     final var element = event.asStartElement();
-                    final var nextIterator = iterator.next(element);
+                    final var nextIterator = iterator.next(element, counter);
                     if (nextIterator == null) {
                         skipDown(reader);
                         continue;
                     }
                     if (nextIterator == MATCHED) {
-                        itemConsumer.accept(getDown(element, reader));
+                        emitter.onNext(getDown(element, reader));
                         continue;
                     }
-                    goDown(reader, nextIterator, itemConsumer);
+                    goDown(reader, nextIterator, emitter);
                     break;
                 case XMLStreamConstants.END_ELEMENT:
                     return;
@@ -71,7 +211,7 @@ public class XPathStreamReader {
                 if (isCData) {
                     builder.append("<![CDATA[");
                 }
-                builder.append(event.asCharacters().getData().trim());
+                appendTrimmed(event.asCharacters().getData(), builder);
                 if (isCData) {
                     builder.append("]]>");
                 }
@@ -90,4 +230,198 @@ public class XPathStreamReader {
 
         throw new XMLStreamException();
     }
+
+    private static String getDown(XMLStreamReader reader, StringBuilder builder, InheritedNamespaces namespaces)
+            throws XMLStreamException {
+        appendStartElement(reader, builder);
+        namespaces.startItem(builder);
+        namespaces.startElement(reader, builder);
+        int down = 0;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    appendStartElement(reader, builder);
+                    namespaces.startElement(reader, builder);
+                    ++down;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    builder.append("</");
+                    appendName(reader.getPrefix(), reader.getLocalName(), builder);
+                    builder.append('>');
+                    namespaces.endElement();
+                    --down;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    appendTrimmedText(reader, builder, true);
+                    break;
+                case XMLStreamConstants.CDATA:
+                    builder.append("<![CDATA[");
+                    appendTrimmedText(reader, builder, false);
+                    builder.append("]]>");
+                    break;
+                default:
+                    break;
+            }
+            if (down < 0) {
+                return builder.toString();
+            }
+        }
+
+        throw new XMLStreamException();
+    }
+
+    private static void appendStartElement(XMLStreamReader reader, StringBuilder builder) {
+        builder.append('<');
+        appendName(reader.getPrefix(), reader.getLocalName(), builder);
+
+        final var namespaceCount = reader.getNamespaceCount();
+        for (int i = 0; i < namespaceCount; ++i) {
+            final var prefix = reader.getNamespacePrefix(i);
+            builder.append(" xmlns");
+            if (prefix != null && !prefix.isEmpty()) {
+                builder.append(':').append(prefix);
+            }
+            builder.append("='");
+            appendEscaped(reader.getNamespaceURI(i), builder);
+            builder.append('\'');
+        }
+
+        final var attributeCount = reader.getAttributeCount();
+        for (int i = 0; i < attributeCount; ++i) {
+            builder.append(' ');
+            appendName(reader.getAttributePrefix(i), reader.getAttributeLocalName(i), builder);
+            builder.append("='");
+            appendEscaped(reader.getAttributeValue(i), builder);
+            builder.append('\'');
+        }
+
+        builder.append('>');
+    }
+
+    // item の中で使われている接頭辞のうち、item の外の要素で宣言されたものを item のルート要素で宣言する。
+    // item の文字列だけを DOM にしても名前空間を解決できるようにするため
+    private static class InheritedNamespaces {
+        // item の中の、今読んでいる要素までの要素で宣言された接頭辞
+        private final List<String> declared = new ArrayList<>();
+        private final Set<String> inherited = new HashSet<>();
+        private int[] declaredCounts = new int[16];
+        private int depth;
+        // ルート要素の開始タグの '>' の位置
+        private int rootEnd;
+
+        // ルート要素の開始タグを書いた直後に呼ぶ
+        void startItem(StringBuilder builder) {
+            declared.clear();
+            inherited.clear();
+            depth = 0;
+            rootEnd = builder.length() - 1;
+        }
+
+        // 開始タグを書いた直後に呼ぶ
+        void startElement(XMLStreamReader reader, StringBuilder builder) {
+            final var namespaceCount = reader.getNamespaceCount();
+            if (depth == declaredCounts.length) {
+                declaredCounts = Arrays.copyOf(declaredCounts, depth * 2);
+            }
+            declaredCounts[depth++] = namespaceCount;
+            for (int i = 0; i < namespaceCount; ++i) {
+                declared.add(Objects.toString(reader.getNamespacePrefix(i), ""));
+            }
+
+            inherit(reader.getPrefix(), reader.getNamespaceURI(), builder);
+            final var attributeCount = reader.getAttributeCount();
+            for (int i = 0; i < attributeCount; ++i) {
+                final var prefix = reader.getAttributePrefix(i);
+                // 接頭辞のない属性は名前空間を持たない
+                if (prefix != null && !prefix.isEmpty()) {
+                    inherit(prefix, reader.getAttributeNamespace(i), builder);
+                }
+            }
+        }
+
+        void endElement() {
+            final var count = declaredCounts[--depth];
+            for (int i = 0; i < count; ++i) {
+                declared.remove(declared.size() - 1);
+            }
+        }
+
+        private void inherit(String prefix, String namespaceURI, StringBuilder builder) {
+            if (namespaceURI == null || namespaceURI.isEmpty()) {
+                return;
+            }
+            final var name = prefix == null ? "" : prefix;
+            if (name.equals(XMLConstants.XML_NS_PREFIX) || declared.contains(name) || !inherited.add(name)) {
+                return;
+            }
+
+            final var declaration = new StringBuilder(" xmlns");
+            if (!name.isEmpty()) {
+                declaration.append(':').append(name);
+            }
+            declaration.append("='");
+            appendEscaped(namespaceURI, declaration);
+            declaration.append('\'');
+            builder.insert(rootEnd, declaration);
+            rootEnd += declaration.length();
+        }
+    }
+
+    private static void appendName(String prefix, String localName, StringBuilder builder) {
+        if (prefix != null && !prefix.isEmpty()) {
+            builder.append(prefix).append(':');
+        }
+        builder.append(localName);
+    }
+
+    private static void appendTrimmedText(XMLStreamReader reader, StringBuilder builder, boolean escape) {
+        final var chars = reader.getTextCharacters();
+        var start = reader.getTextStart();
+        var end = start + reader.getTextLength();
+        while (start < end && chars[start] <= ' ') {
+            ++start;
+        }
+        while (start < end && chars[end - 1] <= ' ') {
+            --end;
+        }
+        if (!escape) {
+            builder.append(chars, start, end - start);
+            return;
+        }
+        for (int i = start; i < end; ++i) {
+            appendEscaped(chars[i], builder);
+        }
+    }
+
+    // String#trim で部分文字列を作らずに追加する
+    private static void appendTrimmed(String value, StringBuilder builder) {
+        var start = 0;
+        var end = value.length();
+        while (start < end && value.charAt(start) <= ' ') {
+            ++start;
+        }
+        while (start < end && value.charAt(end - 1) <= ' ') {
+            --end;
+        }
+        builder.append(value, start, end);
+    }
+
+    private static void appendEscaped(String value, StringBuilder builder) {
+        final var length = value.length();
+        for (int i = 0; i < length; ++i) {
+            appendEscaped(value.charAt(i), builder);
+        }
+    }
+
+    private static void appendEscaped(char c, StringBuilder builder) {
+        switch (c) {
+            case '&' -> builder.append("&amp;");
+            case '<' -> builder.append("&lt;");
+            case '>' -> builder.append("&gt;");
+            case '\'' -> builder.append("&apos;");
+            case '"' -> builder.append("&quot;");
+            default -> builder.append(c);
+        }
+    }
 }
@@ -0,0 +1,83 @@
+package github.sejour.harvestmoon.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// MappedByteBuffer は 2GB までしか扱えないため、ファイルを WINDOW_SIZE 毎に順番に mmap して読む
+public class MappedFileInputStream extends InputStream {
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final boolean closeChannel;
+    private final long size;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    public MappedFileInputStream(Path file) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ), true);
+    }
+
+    // channel の現在位置から読み始める。channel は close しない
+    public MappedFileInputStream(FileChannel channel) throws IOException {
+        this(channel, false);
+    }
+
+    private MappedFileInputStream(FileChannel channel, boolean closeChannel) throws IOException {
+        this.channel = channel;
+        this.closeChannel = closeChannel;
+        size = channel.size();
+        windowStart = channel.position();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextWindow()) {
+            return -1;
+        }
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextWindow()) {
+            return -1;
+        }
+        final var n = Math.min(len, window.remaining());
+        window.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return window == null ? 0 : window.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (closeChannel) {
+            channel.close();
+        }
+    }
+
+    private boolean nextWindow() throws IOException {
+        if (window != null && window.hasRemaining()) {
+            return true;
+        }
+
+        final var start = window == null ? windowStart : windowStart + window.capacity();
+        if (start >= size) {
+            return false;
+        }
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+        return true;
+    }
+}
@@ -0,0 +1,79 @@
+package github.sejour.harvestmoon.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.rxjava3.annotations.NonNull;
+import io.reactivex.rxjava3.core.Scheduler;
+import io.reactivex.rxjava3.disposables.Disposable;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import lombok.experimental.UtilityClass;
+
+// 仮想スレッドは Java 21 以降でのみ使えるため、リフレクションで Thread.ofVirtual を呼ぶ
+@UtilityClass
+public class VirtualThreads {
+    private static final ThreadFactory FACTORY = createFactory();
+    private static final Scheduler SCHEDULER = FACTORY == null ? null : new VirtualThreadScheduler();
+
+    public static boolean isSupported() {
+        return FACTORY != null;
+    }
+
+    public static ThreadFactory factory() {
+        checkSupported();
+        return FACTORY;
+    }
+
+    // Worker 毎に1つの仮想スレッドで実行する Scheduler。
+    // 購読したストリームの処理は全て同じ仮想スレッドで行われるため、XMLStreamReader などを他のスレッドと共有しない
+    public static Scheduler scheduler() {
+        checkSupported();
+        return SCHEDULER;
+    }
+
+    private static void checkSupported() {
+        if (FACTORY == null) {
+            throw new UnsupportedOperationException("virtual threads are not supported by this runtime: "
+                                                    + Runtime.version());
+        }
+    }
+
+    private static ThreadFactory createFactory() {
+        try {
+            final var builderClass = Class.forName("java.lang.Thread$Builder");
+            final var builder = builderClass.getMethod("name", String.class, long.class)
+                                            .invoke(Thread.class.getMethod("ofVirtual").invoke(null),
+                                                    "harvest-moon-virtual-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            // Java 21 より前、またはプレビュー機能が無効
+            return null;
+        }
+    }
+
+    private static class VirtualThreadScheduler extends Scheduler {
+        @Override
+        public @NonNull Worker createWorker() {
+            final var executor = Executors.newSingleThreadExecutor(FACTORY);
+            final var worker = Schedulers.from(executor, true).createWorker();
+            return new Worker() {
+                @Override
+                public @NonNull Disposable schedule(@NonNull Runnable run, long delay, @NonNull TimeUnit unit) {
+                    return worker.schedule(run, delay, unit);
+                }
+
+                @Override
+                public void dispose() {
+                    worker.dispose();
+                    executor.shutdown();
+                }
+
+                @Override
+                public boolean isDisposed() {
+                    return worker.isDisposed();
+                }
+            };
+        }
+    }
+}
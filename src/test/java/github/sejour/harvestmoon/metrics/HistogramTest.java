@@ -0,0 +1,56 @@
+package github.sejour.harvestmoon.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+        final var histogram = new Histogram();
+        for (final var value : new long[] { -5, 0, 1, 2, 3, 4, 1000, Long.MAX_VALUE }) {
+            histogram.record(value);
+        }
+
+        final var snapshot = histogram.snapshot();
+        final var buckets = snapshot.getBuckets();
+        // バケット b には [2^(b-1), 2^b) の値が入り、0 以下の値はバケット 0 に入る
+        assertThat(buckets[0]).isEqualTo(2);
+        assertThat(buckets[1]).isEqualTo(1);
+        assertThat(buckets[2]).isEqualTo(2);
+        assertThat(buckets[3]).isEqualTo(1);
+        assertThat(buckets[10]).isEqualTo(1);
+        assertThat(buckets[63]).isEqualTo(1);
+        assertThat(snapshot.getCount()).isEqualTo(8);
+        assertThat(snapshot.getMax()).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testPercentile() {
+        final var histogram = new Histogram();
+        for (long value = 1; value <= 100; ++value) {
+            histogram.record(value);
+        }
+
+        final var snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(100);
+        assertThat(snapshot.getSum()).isEqualTo(5050);
+        assertThat(snapshot.mean()).isEqualTo(50.5);
+        // 百分位数は値が入るバケットの上限で、最大値を超えない
+        assertThat(snapshot.percentile(0.01)).isEqualTo(1);
+        assertThat(snapshot.percentile(0.03)).isEqualTo(3);
+        assertThat(snapshot.percentile(0.5)).isEqualTo(63);
+        assertThat(snapshot.percentile(0.63)).isEqualTo(63);
+        assertThat(snapshot.percentile(0.64)).isEqualTo(100);
+        assertThat(snapshot.percentile(1)).isEqualTo(100);
+    }
+
+    @Test
+    public void testEmpty() {
+        final var snapshot = new Histogram().snapshot();
+        assertThat(snapshot.getCount()).isZero();
+        assertThat(snapshot.mean()).isZero();
+        assertThat(snapshot.percentile(0.99)).isZero();
+    }
+}
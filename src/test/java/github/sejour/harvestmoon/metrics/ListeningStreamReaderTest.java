@@ -0,0 +1,80 @@
+package github.sejour.harvestmoon.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+
+import org.junit.Test;
+
+public class ListeningStreamReaderTest {
+
+    private static final String XML = "<feed><a/><b/><c/></feed>";
+
+    private final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    // onComplete に渡された events, chars, skipped
+    private static class Completions implements ParseListener {
+        private final List<long[]> values = new ArrayList<>();
+        private long skipped;
+
+        @Override
+        public synchronized void onSkip() {
+            ++skipped;
+        }
+
+        @Override
+        public synchronized void onComplete(long events, long chars, long skipped) {
+            values.add(new long[] { events, chars, skipped });
+        }
+    }
+
+    @Test
+    public void testSkippedPerReader() throws Exception {
+        final var completions = new Completions();
+        final var first = ListeningStreamReader.wrap(createReader(), completions);
+        // 他の reader に包まれていても、その reader の分として数える
+        final var second = new StreamReaderDelegate(ListeningStreamReader.wrap(createReader(), completions));
+
+        ListeningStreamReader.listenerOf(first, completions).onSkip();
+        ListeningStreamReader.listenerOf(second, completions).onSkip();
+        ListeningStreamReader.listenerOf(second, completions).onSkip();
+        readAll(second);
+        readAll(first);
+
+        // 9 events: <feed>, 3 x (start, end), </feed>, END_DOCUMENT
+        assertThat(completions.values).containsExactly(new long[] { 9, XML.length(), 2 },
+                                                       new long[] { 9, XML.length(), 1 });
+        assertThat(completions.skipped).isEqualTo(3);
+        assertThat(ListeningStreamReader.listenerOf(createReader(), completions)).isSameAs(completions);
+    }
+
+    @Test
+    public void testClosedEarly() throws Exception {
+        final var completions = new Completions();
+        final var reader = ListeningStreamReader.wrap(createReader(), completions);
+        reader.next();
+        reader.next();
+        reader.close();
+        reader.close();
+
+        assertThat(completions.values).hasSize(1);
+        assertThat(completions.values.get(0)[0]).isEqualTo(2);
+        assertThat(completions.values.get(0)[1]).isPositive().isLessThan(XML.length());
+    }
+
+    private XMLStreamReader createReader() throws Exception {
+        return factory.createXMLStreamReader(new StringReader(XML));
+    }
+
+    private static void readAll(XMLStreamReader reader) throws Exception {
+        while (reader.hasNext()) {
+            reader.next();
+        }
+    }
+}
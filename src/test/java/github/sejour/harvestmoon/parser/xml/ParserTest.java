@@ -1,13 +1,23 @@
 package github.sejour.harvestmoon.parser.xml;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.xpath.XPathFactory;
 
 import org.junit.Before;
+import org.junit.Test;
 import org.junit.experimental.theories.DataPoints;
 import org.junit.experimental.theories.Theories;
 import org.junit.experimental.theories.Theory;
@@ -21,7 +31,9 @@ import github.sejour.harvestmoon.node.Node;
 import github.sejour.harvestmoon.node.ParsedNode;
 import github.sejour.harvestmoon.path.xml.ItemRootXPath;
 import github.sejour.harvestmoon.path.xml.XPath;
+import github.sejour.harvestmoon.util.VirtualThreads;
 
+import io.reactivex.rxjava3.schedulers.Schedulers;
 import lombok.Builder;
 import lombok.Value;
 
@@ -159,4 +171,111 @@ public class ParserTest {
         }
     }
 
+    @Theory
+    public void testFlowable(Fixture fixture) throws Exception {
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            parser.parseFlowable(in, fixture.itemRootXPath, fixture.nodeRequest)
+                  .test()
+                  .assertValueSequence(fixture.expects);
+        }
+    }
+
+    @Theory
+    public void testParallel(Fixture fixture) throws Exception {
+        final var ordered = Parallelism.builder()
+                                       .scheduler(Schedulers.computation())
+                                       .concurrency(4)
+                                       .ordered(true)
+                                       .build();
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            parser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, ordered)
+                  .test()
+                  .awaitDone(10, TimeUnit.SECONDS)
+                  .assertComplete()
+                  .assertValueSequence(fixture.expects);
+        }
+
+        final var unordered = ordered.toBuilder().ordered(false).build();
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var values = parser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, unordered)
+                                     .test()
+                                     .awaitDone(10, TimeUnit.SECONDS)
+                                     .assertComplete()
+                                     .values();
+            assertThat(values).containsExactlyInAnyOrderElementsOf(fixture.expects);
+        }
+    }
+
+    @Test
+    public void testVirtualThread() throws Exception {
+        assumeTrue(VirtualThreads.isSupported());
+        for (final var fixture : FIXTURES) {
+            testVirtualThread(fixture);
+        }
+    }
+
+    @Test
+    public void testVirtualThreadUnsupported() throws Exception {
+        assumeFalse(VirtualThreads.isSupported());
+        final var fixture = FIXTURES[0];
+
+        // 仮想スレッドを使えない場合も、呼び出しでは例外を投げずに onError で通知する
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var observable = parser.parseOnVirtualThread(in, fixture.itemRootXPath, fixture.nodeRequest);
+            final var flowable = parser.parseFlowableOnVirtualThread(in, fixture.itemRootXPath, fixture.nodeRequest);
+            observable.test()
+                      .awaitDone(10, TimeUnit.SECONDS)
+                      .assertError(UnsupportedOperationException.class);
+            flowable.test()
+                    .awaitDone(10, TimeUnit.SECONDS)
+                    .assertError(UnsupportedOperationException.class);
+        }
+    }
+
+    private void testVirtualThread(Fixture fixture) throws Exception {
+        // 購読したストリームの処理は、1つの仮想スレッドで行われる
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            parser.parseFlowableOnVirtualThread(in, fixture.itemRootXPath, fixture.nodeRequest)
+                  .doOnNext(node -> threads.add(Thread.currentThread()))
+                  .rebatchRequests(1)
+                  .test()
+                  .awaitDone(10, TimeUnit.SECONDS)
+                  .assertComplete()
+                  .assertValueSequence(fixture.expects);
+        }
+        assertThat(threads).hasSize(1)
+                           .allMatch(thread -> thread.getName().startsWith("harvest-moon-virtual-"));
+
+        final var parallelism = Parallelism.builder()
+                                           .scheduler(VirtualThreads.scheduler())
+                                           .concurrency(4)
+                                           .ordered(true)
+                                           .build();
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            parser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, parallelism)
+                  .test()
+                  .awaitDone(10, TimeUnit.SECONDS)
+                  .assertComplete()
+                  .assertValueSequence(fixture.expects);
+        }
+    }
+
+    @Theory
+    public void testMapped(Fixture fixture) throws Exception {
+        final var file = Paths.get(getClass().getResource(TEST_XML_FILE).toURI());
+        parser.parse(file, fixture.itemRootXPath, fixture.nodeRequest)
+              .test()
+              .assertComplete()
+              .assertValueSequence(fixture.expects);
+
+        try (final var channel = FileChannel.open(file)) {
+            final var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            parser.parseFlowable(buffer, fixture.itemRootXPath, fixture.nodeRequest)
+                  .test()
+                  .assertComplete()
+                  .assertValueSequence(fixture.expects);
+        }
+    }
+
 }
@@ -0,0 +1,876 @@
+package github.sejour.harvestmoon.parser.xml;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.xpath.XPathFactory;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.experimental.theories.Theories;
+import org.junit.experimental.theories.Theory;
+import org.junit.runner.RunWith;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import github.sejour.harvestmoon.exception.ParseException;
+import github.sejour.harvestmoon.metrics.ParseListener.Phase;
+import github.sejour.harvestmoon.metrics.ParseMetrics;
+import github.sejour.harvestmoon.node.Node;
+import github.sejour.harvestmoon.node.ParsedNode;
+import github.sejour.harvestmoon.path.xml.ItemRootXPath;
+import github.sejour.harvestmoon.path.xml.XPath;
+
+import io.reactivex.rxjava3.core.Flowable;
+import lombok.Builder;
+import lombok.Value;
+
+@RunWith(Theories.class)
+public class StreamParserTest {
+
+    private static final String TEST_XML_FILE = "/xml/parser_test.xml";
+    private static final String NAMESPACE_TEST_XML_FILE = "/xml/namespace_test.xml";
+    private static final String ATOM = "http://www.w3.org/2005/Atom";
+    private static final String MEDIA = "http://search.yahoo.com/mrss/";
+
+    private Parser domParser;
+    private StreamParser streamParser;
+
+    @Before
+    public void setup() {
+        domParser = new Parser(XMLInputFactory.newInstance(),
+                               XPathFactory.newInstance(),
+                               DocumentBuilderFactory.newInstance());
+        streamParser = new StreamParser(XMLInputFactory.newInstance());
+    }
+
+    @Value
+    @Builder
+    static class Fixture {
+        ItemRootXPath itemRootXPath;
+        Request nodeRequest;
+        // 位置の述語や union を含む item root はチャンクに分割できない
+        @Builder.Default
+        boolean splittable = true;
+    }
+
+    @DataPoints
+    public static final Fixture[] FIXTURES = new Fixture[] {
+            Fixture.builder()
+                   .itemRootXPath(new ItemRootXPath("//entry"))
+                   .nodeRequest(Request.builder()
+                                       .attributeRequests(ImmutableSet.of("name", "unknown"))
+                                       .childRequests(ImmutableMap.<XPath, Request>builder()
+                                                              .put(new XPath("title"),
+                                                                   Request.builder()
+                                                                          .wantText(true)
+                                                                          .build())
+                                                              .put(new XPath("description"),
+                                                                   Request.builder()
+                                                                          .wantText(true)
+                                                                          .build())
+                                                              .put(new XPath("img"),
+                                                                   Request.builder()
+                                                                          .attributeRequests(
+                                                                                  ImmutableSet.of("src"))
+                                                                          .build())
+                                                              .build())
+                                       .build())
+                   .build(),
+            Fixture.builder()
+                   .itemRootXPath(new ItemRootXPath("//item"))
+                   .nodeRequest(Request.builder()
+                                       .wantText(true)
+                                       .attributeRequests(ImmutableSet.of("color"))
+                                       .build())
+                   .build(),
+            Fixture.builder()
+                   .itemRootXPath(new ItemRootXPath("/test/data/venus/venu"))
+                   .nodeRequest(Request.builder()
+                                       .childRequests(ImmutableMap.<XPath, Request>builder()
+                                                              .put(new XPath("name"),
+                                                                   Request.builder()
+                                                                          .wantText(true)
+                                                                          .build())
+                                                              .put(new XPath("station"),
+                                                                   Request.builder()
+                                                                          .wantText(true)
+                                                                          .build())
+                                                              .build())
+                                       .build())
+                   .build(),
+            Fixture.builder()
+                   .itemRootXPath(new ItemRootXPath("/test/contents"))
+                   .nodeRequest(Request.builder()
+                                       .childRequests(ImmutableMap.<XPath, Request>builder()
+                                                              .put(new XPath("content[@class='foo']/data"),
+                                                                   Request.builder()
+                                                                          .wantText(true)
+                                                                          .attributeRequests(
+                                                                                  ImmutableSet.of("type"))
+                                                                          .build())
+                                                              .put(new XPath("group/content"),
+                                                                   Request.builder()
+                                                                          .attributeRequests(
+                                                                                  ImmutableSet.of("class"))
+                                                                          .childRequests(ImmutableMap.of(
+                                                                                  new XPath("data/header"),
+                                                                                  Request.builder()
+                                                                                         .wantText(true)
+                                                                                         .build()))
+                                                                          .build())
+                                                              .build())
+                                       .build())
+                   .build(),
+            Fixture.builder()
+                   .itemRootXPath(new ItemRootXPath("/test/data/foods/food[@genre='korean']"))
+                   .nodeRequest(Request.builder()
+                                       .wantText(true)
+                                       .build())
+                   .build(),
+            Fixture.builder()
+                   .itemRootXPath(new ItemRootXPath("/test/contents/content[2]"
+                                                    + " | /test/contents/group[not(@domain='yyy')]/content"))
+                   .nodeRequest(Request.builder()
+                                       .attributeRequests(ImmutableSet.of("class"))
+                                       .childRequests(ImmutableMap.<XPath, Request>builder()
+                                                              .put(new XPath("data[1]/header"),
+                                                                   Request.builder()
+                                                                          .wantText(true)
+                                                                          .build())
+                                                              .put(new XPath("data[contains(@type, 'B')]/body"
+                                                                             + " | data[@type='A']/footer"),
+                                                                   Request.builder()
+                                                                          .wantText(true)
+                                                                          .build())
+                                                              .build())
+                                       .build())
+                   .splittable(false)
+                   .build(),
+    };
+
+    @Theory
+    public void test(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            streamParser.parse(in, fixture.itemRootXPath, fixture.nodeRequest)
+                        .test()
+                        .assertComplete()
+                        .assertValueSequence(expects);
+        }
+    }
+
+    @Theory
+    public void testFlowable(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var subscriber = streamParser.parseFlowable(in, fixture.itemRootXPath, fixture.nodeRequest)
+                                               .test(0);
+            subscriber.assertNoValues();
+            subscriber.requestMore(1);
+            subscriber.assertValuesOnly(expects.get(0));
+            subscriber.requestMore(Long.MAX_VALUE);
+            subscriber.assertComplete()
+                      .assertValueSequence(expects);
+        }
+    }
+
+    @Theory
+    public void testChunked(Fixture fixture) throws Exception {
+        assumeTrue(fixture.splittable);
+        final var expects = parse(domParser, fixture);
+        final var file = Paths.get(getClass().getResource(TEST_XML_FILE).toURI());
+        final var parallelism = Parallelism.builder()
+                                           .concurrency(4)
+                                           .chunkSize(97)
+                                           .ordered(true)
+                                           .build();
+
+        streamParser.parse(file, fixture.itemRootXPath, fixture.nodeRequest, parallelism)
+                    .test()
+                    .awaitDone(10, TimeUnit.SECONDS)
+                    .assertComplete()
+                    .assertValueSequence(expects);
+    }
+
+    @Theory
+    public void testResumable(Fixture fixture) throws Exception {
+        assumeTrue(fixture.splittable);
+        final var expects = parse(domParser, fixture);
+        final var file = Paths.get(getClass().getResource(TEST_XML_FILE).toURI());
+
+        final var all = streamParser.parseResumable(file, fixture.itemRootXPath, fixture.nodeRequest)
+                                    .toList()
+                                    .blockingGet();
+        assertThat(all).extracting(CheckpointedNode::getNode).containsExactlyElementsOf(expects);
+
+        // 各 item の Checkpoint から再開すると、残りの item が出力される
+        for (int i = 0; i < all.size(); ++i) {
+            final var checkpoint = all.get(i).getCheckpoint();
+            assertThat(checkpoint.getItemIndex()).isEqualTo(i + 1);
+            streamParser.parseResumable(file, fixture.itemRootXPath, fixture.nodeRequest, checkpoint)
+                        .map(CheckpointedNode::getNode)
+                        .test()
+                        .assertComplete()
+                        .assertValueSequence(expects.subList(i + 1, expects.size()));
+        }
+    }
+
+    @Theory
+    public void testFeed(Fixture fixture) throws Exception {
+        assumeTrue(fixture.splittable);
+        final var expects = parse(domParser, fixture);
+        final byte[] bytes;
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            bytes = in.readAllBytes();
+        }
+
+        // タグの途中で切れるように、小さなチャンクに分けて渡す
+        final var chunks = Flowable.range(0, (bytes.length + 6) / 7)
+                                   .map(i -> ByteBuffer.wrap(bytes, i * 7, Math.min(7, bytes.length - i * 7)));
+        streamParser.parseFeed(chunks, fixture.itemRootXPath, fixture.nodeRequest)
+                    .test()
+                    .assertComplete()
+                    .assertValueSequence(expects);
+
+        // 最初の item の開始タグの直後で入力が終わる
+        final var itemTag = Pattern.compile('<' + fixture.itemRootXPath.getIterator().getLeaf().getLocalName()
+                                            + "[\\s/>]")
+                                   .matcher(new String(bytes, StandardCharsets.ISO_8859_1));
+        assertThat(itemTag.find()).isTrue();
+        final var cut = itemTag.end();
+        final var feeder = streamParser.feeder(fixture.itemRootXPath, fixture.nodeRequest);
+        assertThat(feeder.feed(ByteBuffer.wrap(bytes, 0, cut))).isEmpty();
+        assertThatThrownBy(feeder::finish).isInstanceOf(ParseException.class);
+    }
+
+    @Theory
+    public void testPage(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+        final var page = Page.builder().offset(1).limit(2).build();
+        final var pageExpects = expects.subList(Math.min(1, expects.size()), Math.min(3, expects.size()));
+
+        for (final var lazy : new boolean[] { false, true }) {
+            final var options = ParseOptions.builder().lazy(lazy).page(page).build();
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parseFlowable(in, fixture.itemRootXPath, fixture.nodeRequest, options)
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(node -> materialize(node, fixture.nodeRequest))
+                        .containsExactlyElementsOf(pageExpects);
+            }
+        }
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            domParser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, page)
+                     .test()
+                     .assertComplete()
+                     .assertValueSequence(pageExpects);
+        }
+
+        // 購読が解除されると、文書の終わりまで読まずにやめ、そこまでに読んだ分を listener に渡す
+        final var fullMetrics = new ParseMetrics();
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            new Parser(XMLInputFactory.newInstance(), XPathFactory.newInstance(),
+                       DocumentBuilderFactory.newInstance(), fullMetrics)
+                    .parse(in, fixture.itemRootXPath, fixture.nodeRequest)
+                    .test()
+                    .assertComplete();
+        }
+        final var metrics = new ParseMetrics();
+        final var listened = new Parser(XMLInputFactory.newInstance(), XPathFactory.newInstance(),
+                                        DocumentBuilderFactory.newInstance(), metrics);
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            listened.parse(in, fixture.itemRootXPath, fixture.nodeRequest)
+                    .take(1)
+                    .test()
+                    .assertComplete()
+                    .assertValues(expects.get(0));
+        }
+        final var full = fullMetrics.snapshot();
+        final var partial = metrics.snapshot();
+        assertThat(partial.getEvents()).isPositive().isLessThan(full.getEvents());
+        assertThat(partial.getChars()).isPositive().isLessThan(full.getChars());
+    }
+
+    @Theory
+    public void testLazy(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+        final var options = ParseOptions.builder().lazy(true).build();
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var nodes = streamParser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, options)
+                                          .toList()
+                                          .blockingGet();
+            assertThat(nodes).allMatch(LazyNode.class::isInstance);
+            assertThat(nodes)
+                    .extracting(node -> materialize(node, fixture.nodeRequest))
+                    .containsExactlyElementsOf(expects);
+        }
+    }
+
+    @Theory
+    public void testCodec(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+        final var lazy = ParseOptions.builder().lazy(true).build();
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var nodes = streamParser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, lazy)
+                                          .toList()
+                                          .blockingGet();
+            final var encoded = NodeCodec.encode(nodes, fixture.nodeRequest);
+            assertThat(NodeCodec.encode(expects, fixture.nodeRequest)).isEqualTo(encoded);
+
+            final var out = new ByteArrayOutputStream();
+            try (final var writer = new NodeCodec.Writer(out, fixture.nodeRequest)) {
+                for (final var node : expects) {
+                    writer.write(node);
+                }
+            }
+            final var direct = ByteBuffer.allocateDirect(out.size()).put(out.toByteArray()).flip();
+
+            for (final var buffer : List.of(encoded, direct)) {
+                final var decoded = NodeCodec.decode(buffer);
+                assertThat(decoded).allMatch(BinaryNode.class::isInstance);
+                assertThat(decoded)
+                        .extracting(node -> materialize(node, fixture.nodeRequest))
+                        .containsExactlyElementsOf(expects);
+            }
+        }
+        assertThatThrownBy(() -> NodeCodec.decode(ByteBuffer.wrap(new byte[16])))
+                .isInstanceOf(ParseException.class);
+    }
+
+    @Theory
+    public void testBatches(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+        final var batching = Batching.builder().maxItems(2).build();
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var batches = streamParser.parseBatches(in, fixture.itemRootXPath, fixture.nodeRequest, batching)
+                                            .toList()
+                                            .blockingGet();
+            assertThat(batches).allMatch(batch -> !batch.isEmpty() && batch.size() <= 2);
+            assertThat(batches)
+                    .flatExtracting(batch -> batch)
+                    .containsExactlyElementsOf(expects);
+        }
+
+        // 1件目で文字数の上限を超えるので、1件ずつになる
+        final var budget = Batching.builder().maxChars(1).build();
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            streamParser.parseBatches(in, fixture.itemRootXPath, fixture.nodeRequest, budget)
+                        .test()
+                        .assertComplete()
+                        .assertValueCount(expects.size());
+        }
+    }
+
+    @Theory
+    public void testColumnar(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+        final var batching = Batching.builder().maxItems(2).build();
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var batches = streamParser.parseColumnar(in, fixture.itemRootXPath, fixture.nodeRequest, batching)
+                                            .toList()
+                                            .blockingGet();
+            assertThat(batches).allMatch(batch -> batch.size() <= 2);
+            assertThat(batches)
+                    .flatExtracting(batch -> batch)
+                    .extracting(node -> materialize(node, fixture.nodeRequest))
+                    .containsExactlyElementsOf(expects);
+        }
+    }
+
+    @Theory
+    public void testMaxTextLength(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture)
+                .stream()
+                .map(node -> materialize(node, fixture.nodeRequest, 3))
+                .collect(Collectors.toList());
+
+        for (final var lazy : new boolean[] { false, true }) {
+            final var options = ParseOptions.builder().lazy(lazy).maxTextLength(3).build();
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, options)
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(node -> materialize(node, fixture.nodeRequest))
+                        .containsExactlyElementsOf(expects);
+            }
+        }
+    }
+
+    @Theory
+    public void testMetrics(Fixture fixture) throws Exception {
+        final var expects = parse(domParser, fixture);
+        final var metrics = new ParseMetrics();
+        final var parser = new StreamParser(XMLInputFactory.newInstance(), metrics);
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            parser.parse(in, fixture.itemRootXPath, fixture.nodeRequest)
+                  .test()
+                  .assertComplete()
+                  .assertValueSequence(expects);
+        }
+
+        final var snapshot = metrics.snapshot();
+        assertThat(snapshot.getItems()).isEqualTo(expects.size());
+        assertThat(snapshot.getEvents()).isPositive();
+        assertThat(snapshot.getChars()).isPositive();
+        assertThat(snapshot.skipRatio()).isBetween(0.0, 1.0);
+        assertThat(snapshot.getItemNanos().percentile(0.99)).isLessThanOrEqualTo(snapshot.getItemNanos().getMax());
+
+        // Parser は item の部分木を全て読むため、読み飛ばした数は StreamParser 以下になる
+        final var domMetrics = new ParseMetrics();
+        final var parser2 = new Parser(XMLInputFactory.newInstance(), XPathFactory.newInstance(),
+                                       DocumentBuilderFactory.newInstance(), domMetrics);
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            parser2.parse(in, fixture.itemRootXPath, fixture.nodeRequest)
+                   .test()
+                   .assertComplete();
+        }
+
+        final var domSnapshot = domMetrics.snapshot();
+        assertThat(domSnapshot.getItems()).isEqualTo(expects.size());
+        assertThat(domSnapshot.getSkipped()).isLessThanOrEqualTo(snapshot.getSkipped());
+        assertThat(domSnapshot.getEvents()).isEqualTo(snapshot.getEvents());
+        // item の文字数は、文字列にし直したものではなく入力の文字数
+        assertThat(domSnapshot.getItemChars().getSum()).isEqualTo(snapshot.getItemChars().getSum());
+        assertThat(domSnapshot.phaseNanos(Phase.SERIALIZE)).isPositive();
+        assertThat(domSnapshot.phaseNanos(Phase.EVALUATE)).isPositive();
+    }
+
+    @Test
+    public void testTextSelection() throws Exception {
+        final var itemRoot = new ItemRootXPath("//item");
+        final var request = Request.builder()
+                                   .attributeRequests(ImmutableSet.of("color"))
+                                   .childRequests(ImmutableMap.of(new XPath("title/text()"), Request.builder().build()))
+                                   .build();
+        final var textRoot = new ItemRootXPath("/test/data/venus/venu[2]/name/text()"
+                                                + " | /test/data/venus/venu[4]/station/text()");
+
+        for (final var options : List.of(ParseOptions.DEFAULT, ParseOptions.builder().lazy(true).build())) {
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, itemRoot, request, options).toList().blockingGet())
+                        .extracting(node -> node.find(new XPath("title/text()"))
+                                                .stream()
+                                                .map(Node::text)
+                                                .collect(Collectors.toList()))
+                        .containsExactlyElementsOf(List.of(List.of("ITEM-1"), List.of("ITEM-2"), List.of()));
+            }
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, textRoot, Request.builder().build(), options)
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(Node::text)
+                        .containsExactly("STUDIO COAST", "渋谷", "神泉");
+            }
+        }
+
+        // Parser も text() で選択した要素の直下のテキストだけを持つ Node を返す
+        for (final var root : List.of(itemRoot, textRoot)) {
+            final var nodeRequest = root == itemRoot ? request : Request.builder().build();
+            try (final var dom = getClass().getResourceAsStream(TEST_XML_FILE);
+                 final var stream = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(domParser.parse(dom, root, nodeRequest).toList().blockingGet())
+                        .containsExactlyElementsOf(streamParser.parse(stream, root, nodeRequest)
+                                                               .toList()
+                                                               .blockingGet());
+            }
+        }
+    }
+
+    @Test
+    public void testNestedUnion() throws Exception {
+        // //venu と //name は互いの中に一致し、venu[2] は //venu と同じ要素に一致する
+        final var itemRoot = new ItemRootXPath("//venu | //name | /test/data/venus/venu[2]");
+        final var request = Request.builder().wantText(true).build();
+        final List<Node<XPath>> venus;
+        final List<Node<XPath>> names;
+        try (final var venu = getClass().getResourceAsStream(TEST_XML_FILE);
+             final var name = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            venus = streamParser.parse(venu, new ItemRootXPath("//venu"), request).toList().blockingGet();
+            names = streamParser.parse(name, new ItemRootXPath("//name"), request).toList().blockingGet();
+        }
+        // 各要素は1度だけ、文書順に出力される
+        final var expects = new ArrayList<Node<XPath>>();
+        for (int i = 0; i < venus.size(); ++i) {
+            expects.add(venus.get(i));
+            expects.add(names.get(i));
+        }
+        assertThat(expects).hasSize(8);
+
+        for (final var lazy : new boolean[] { false, true }) {
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, itemRoot, request, ParseOptions.builder().lazy(lazy).build())
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(node -> materialize(node, request))
+                        .containsExactlyElementsOf(expects);
+            }
+            final var page = Page.builder().offset(1).limit(3).build();
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, itemRoot, request,
+                                              ParseOptions.builder().lazy(lazy).page(page).build())
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(node -> materialize(node, request))
+                        .containsExactlyElementsOf(expects.subList(1, 4));
+            }
+        }
+
+        // Parser と列指向の出力は、入れ子の要素に一致しうる union を扱えない
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            assertThatThrownBy(() -> domParser.parse(in, itemRoot, request))
+                    .isInstanceOf(ParseException.class);
+            assertThatThrownBy(() -> streamParser.parseColumnar(in, itemRoot, request,
+                                                                Batching.builder().maxItems(1).build()))
+                    .isInstanceOf(ParseException.class);
+        }
+    }
+
+    @Test
+    public void testNestedChildUnion() throws Exception {
+        final var itemRoot = new ItemRootXPath("/test/contents/content[1] | /test/contents/group/content");
+        final var request = Request.builder()
+                                   .childRequests(ImmutableMap.of(new XPath("data | data/header | data[@type='A']"),
+                                                                  Request.builder().wantText(true).build()))
+                                   .build();
+
+        // Parser は子要素の XPath を DOM で評価するので、入れ子の要素を文書順に返す
+        final List<Node<XPath>> expects;
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            expects = domParser.parse(in, itemRoot, request).toList().blockingGet();
+        }
+        assertThat(expects.get(0).find(new XPath("data | data/header | data[@type='A']")))
+                .extracting(Node::text)
+                .containsExactly("foo-A-1-headerfoo-A-1-bodyfoo-A-1-footer", "foo-A-1-header",
+                                 "foo-B-1-headerfoo-B-1-bodyfoo-B-1-footer", "foo-B-1-header");
+
+        for (final var lazy : new boolean[] { false, true }) {
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, itemRoot, request, ParseOptions.builder().lazy(lazy).build())
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(node -> materialize(node, request))
+                        .containsExactlyElementsOf(expects);
+            }
+        }
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            assertThatThrownBy(() -> streamParser.parseColumnar(in, itemRoot, request,
+                                                                Batching.builder().maxItems(1).build()))
+                    .isInstanceOf(ParseException.class);
+        }
+    }
+
+    @Test
+    public void testNamespaces() throws Exception {
+        final var prefixed = new ItemRootXPath("/a:feed/a:entry", Map.of("a", ATOM, "m", MEDIA));
+        final var prefixedRequest = Request.builder()
+                                           .childRequests(ImmutableMap.of(
+                                                   new XPath("a:title"),
+                                                   Request.builder().wantText(true).build(),
+                                                   new XPath("m:thumbnail[@m:type='image']"),
+                                                   Request.builder().attributeRequests(Set.of("url")).build()))
+                                           .build();
+        // 接頭辞のない要素名は "" の名前空間とする
+        final var unprefixed = new ItemRootXPath("/feed/entry", Map.of("", ATOM, "m", MEDIA));
+        final var unprefixedRequest = Request.builder()
+                                             .childRequests(ImmutableMap.of(
+                                                     new XPath("title"),
+                                                     Request.builder().wantText(true).build(),
+                                                     new XPath("m:thumbnail[@m:type='image']"),
+                                                     Request.builder().attributeRequests(Set.of("url")).build()))
+                                             .build();
+        final var file = Paths.get(getClass().getResource(NAMESPACE_TEST_XML_FILE).toURI());
+        final var parallelism = Parallelism.builder().chunkSize(64).ordered(true).build();
+
+        for (final var itemRoot : List.of(prefixed, unprefixed)) {
+            final var request = itemRoot == prefixed ? prefixedRequest : unprefixedRequest;
+            final var title = request.getChildRequests().keySet().iterator().next();
+            final var thumbnail = new XPath("m:thumbnail[@m:type='image']");
+            final List<Node<XPath>> nodes;
+            try (final var in = getClass().getResourceAsStream(NAMESPACE_TEST_XML_FILE)) {
+                nodes = streamParser.parse(in, itemRoot, request).toList().blockingGet();
+            }
+            final var chunked = streamParser.parse(file, itemRoot, request, parallelism).toList().blockingGet();
+
+            for (final var actual : List.of(nodes, chunked)) {
+                assertThat(actual)
+                        .extracting(node -> node.find(title).get(0).text() + '|'
+                                            + node.find(thumbnail)
+                                                  .stream()
+                                                  .map(t -> t.attribute("url"))
+                                                  .collect(Collectors.joining(",")))
+                        .containsExactly("ORANGE|http://www.example.com/orange.jpg", "APPLE|");
+            }
+        }
+
+        // Parser は名前空間を扱う DocumentBuilderFactory が必要で、既定の名前空間は解決できない
+        final var documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        final var namespaceAwareParser = new Parser(XMLInputFactory.newInstance(), XPathFactory.newInstance(),
+                                                    documentBuilderFactory);
+        try (final var in = getClass().getResourceAsStream(NAMESPACE_TEST_XML_FILE)) {
+            final List<Node<XPath>> nodes = namespaceAwareParser.parse(in, prefixed, prefixedRequest)
+                                                                .toList()
+                                                                .blockingGet();
+            try (final var stream = getClass().getResourceAsStream(NAMESPACE_TEST_XML_FILE)) {
+                assertThat(nodes).containsExactlyElementsOf(streamParser.parse(stream, prefixed, prefixedRequest)
+                                                                        .toList()
+                                                                        .blockingGet());
+            }
+            assertThat(nodes).extracting(node -> node.find(new XPath("a:title")).get(0).text())
+                             .containsExactly("ORANGE", "APPLE");
+        }
+        try (final var in = getClass().getResourceAsStream(NAMESPACE_TEST_XML_FILE)) {
+            assertThatThrownBy(() -> domParser.parse(in, prefixed, prefixedRequest))
+                    .isInstanceOf(ParseException.class);
+            assertThatThrownBy(() -> namespaceAwareParser.parse(in, unprefixed, unprefixedRequest))
+                    .isInstanceOf(ParseException.class);
+        }
+    }
+
+    @Test
+    public void testNamespacedAttributes() throws Exception {
+        final var itemRoot = new ItemRootXPath("/atom:feed/atom:entry", Map.of("atom", ATOM, "media", MEDIA));
+        // 接頭辞のない type は名前空間を持たない属性なので、media:type には一致しない
+        final var request = Request.builder()
+                                   .childRequests(ImmutableMap.of(
+                                           new XPath("media:thumbnail"),
+                                           Request.builder().attributeRequests(Set.of("url", "media:type", "type"))
+                                                  .build()))
+                                   .build();
+        final var documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        final var namespaceAwareParser = new Parser(XMLInputFactory.newInstance(), XPathFactory.newInstance(),
+                                                    documentBuilderFactory);
+        final List<Node<XPath>> expects;
+        try (final var in = getClass().getResourceAsStream(NAMESPACE_TEST_XML_FILE)) {
+            expects = namespaceAwareParser.parse(in, itemRoot, request).toList().blockingGet();
+        }
+        assertThat(expects)
+                .extracting(node -> node.find(new XPath("media:thumbnail")).get(0))
+                .extracting(node -> node.attribute("media:type") + '|' + node.attribute("type"))
+                .containsExactly("image|", "video|");
+
+        for (final var lazy : new boolean[] { false, true }) {
+            try (final var in = getClass().getResourceAsStream(NAMESPACE_TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, itemRoot, request, ParseOptions.builder().lazy(lazy).build())
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(node -> materialize(node, request))
+                        .containsExactlyElementsOf(expects);
+            }
+        }
+        try (final var in = getClass().getResourceAsStream(NAMESPACE_TEST_XML_FILE)) {
+            assertThat(streamParser.parseColumnar(in, itemRoot, request, Batching.builder().maxItems(1).build())
+                                   .toList()
+                                   .blockingGet())
+                    .flatExtracting(batch -> batch)
+                    .extracting(node -> materialize(node, request))
+                    .containsExactlyElementsOf(expects);
+        }
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        final var fixture = FIXTURES[0];
+        final var title = new XPath("title");
+        final Predicate<Node<XPath>> titlePredicate = node -> !node.find(title).get(0).text().equals("APPLE");
+        // 1件目は属性の条件、2件目は Node の条件で除かれる
+        final var expects = parse(domParser, fixture)
+                .stream()
+                .filter(node -> !node.attribute("name").equals("orange"))
+                .filter(titlePredicate)
+                .collect(Collectors.toList());
+        assertThat(expects).isNotEmpty();
+
+        for (final var lazy : new boolean[] { false, true }) {
+            final var filter = ItemFilter.builder()
+                                         .attributeCondition("not(@name='orange')")
+                                         .predicate(titlePredicate)
+                                         .build();
+            final var options = ParseOptions.builder().lazy(lazy).filter(filter).build();
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                assertThat(streamParser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, options)
+                                       .toList()
+                                       .blockingGet())
+                        .extracting(node -> materialize(node, fixture.nodeRequest))
+                        .containsExactlyElementsOf(expects);
+            }
+        }
+
+        // page は条件に一致した item を数える。条件を開始タグで評価する場合も、Node で評価する場合も同じ
+        final var notOrange = parse(domParser, fixture)
+                .stream()
+                .filter(node -> !node.attribute("name").equals("orange"))
+                .collect(Collectors.toList());
+        final var page = Page.builder().offset(1).limit(1).build();
+        for (final var filter : List.of(ItemFilter.builder().attributeCondition("not(@name='orange')").build(),
+                                        ItemFilter.builder()
+                                                  .predicate(node -> !node.attribute("name").equals("orange"))
+                                                  .build())) {
+            final var options = ParseOptions.builder().filter(filter).page(page).build();
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                streamParser.parse(in, fixture.itemRootXPath, fixture.nodeRequest, options)
+                            .test()
+                            .assertComplete()
+                            .assertValues(notOrange.get(1));
+            }
+        }
+    }
+
+    @Test
+    public void testPlanCache() {
+        // 等しい式と Request からは、同じコンパイル結果が返る
+        for (final var fixture : FIXTURES) {
+            final var itemRoot = new ItemRootXPath(fixture.itemRootXPath.getExpression(),
+                                                   fixture.itemRootXPath.getNamespaces());
+            assertThat(itemRoot.getIterator()).isSameAs(fixture.itemRootXPath.getIterator());
+            final var request = Request.builder()
+                                       .wantText(fixture.nodeRequest.isWantText())
+                                       .attributeRequests(fixture.nodeRequest.getAttributeRequests())
+                                       .childRequests(fixture.nodeRequest.getChildRequests())
+                                       .build();
+            assertThat(CompiledRequest.compile(itemRoot, request))
+                    .isSameAs(CompiledRequest.compile(fixture.itemRootXPath, fixture.nodeRequest));
+        }
+    }
+
+    @Test
+    public void testPlanCacheAfterMutation() {
+        // Request の Set や Map を変更した後は、変更前のコンパイル結果を返さない
+        final var itemRoot = new ItemRootXPath("//item");
+        final var attributes = new HashSet<String>();
+        attributes.add("color");
+        final var children = new HashMap<XPath, Request>();
+        final var request = Request.builder()
+                                   .attributeRequests(attributes)
+                                   .childRequests(children)
+                                   .build();
+        final var before = CompiledRequest.compile(itemRoot, request);
+        assertThat(before.getAttributeNames()).containsExactly("color");
+        assertThat(before.getChildren()).isEmpty();
+
+        attributes.add("size");
+        children.put(new XPath("title"), Request.builder().wantText(true).build());
+        final var after = CompiledRequest.compile(itemRoot, request);
+        assertThat(after.getAttributeNames()).containsExactlyInAnyOrder("color", "size");
+        assertThat(after.getChildren()).extracting(CompiledChildRequest::getKey)
+                                       .containsExactly(new XPath("title"));
+        assertThat(before.getAttributeNames()).containsExactly("color");
+    }
+
+    @Test
+    public void testMultiQuery() throws Exception {
+        final var queries = Arrays
+                .stream(FIXTURES)
+                .map(fixture -> Query.builder()
+                                     .itemRootPath(fixture.itemRootXPath)
+                                     .nodeRequest(fixture.nodeRequest)
+                                     .build())
+                .collect(Collectors.toList());
+
+        final List<TaggedNode> tagged;
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            tagged = streamParser.parse(in, queries)
+                                 .toList()
+                                 .blockingGet();
+        }
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var streams = streamParser.parseEach(in, queries);
+            final var subscribers = streams.stream().map(Flowable::test).collect(Collectors.toList());
+
+            for (int i = 0; i < queries.size(); ++i) {
+                final var index = i;
+                final var expects = parse(domParser, FIXTURES[i]);
+                assertThat(tagged)
+                        .filteredOn(node -> node.getQueryIndex() == index)
+                        .extracting(TaggedNode::getNode)
+                        .containsExactlyElementsOf(expects);
+                subscribers.get(i)
+                           .assertComplete()
+                           .assertValueSequence(expects);
+            }
+        }
+
+        // 同じ Query を2回指定しても、それぞれのストリームには1回ずつ出力する
+        final var twice = List.of(queries.get(0), queries.get(0));
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var streams = streamParser.parseEach(in, twice);
+            final var subscribers = streams.stream().map(Flowable::test).collect(Collectors.toList());
+            final var expects = parse(domParser, FIXTURES[0]);
+            for (final var subscriber : subscribers) {
+                subscriber.assertComplete().assertValueSequence(expects);
+            }
+        }
+    }
+
+    private static Node<XPath> materialize(Node<XPath> node, Request request) {
+        return materialize(node, request, 0);
+    }
+
+    // Node のメソッドを通して読んだ値で ParsedNode を作る。maxTextLength が 0 より大きい場合はテキストを切り詰める
+    private static Node<XPath> materialize(Node<XPath> node, Request request, int maxTextLength) {
+        assertThat(Objects.toString(node.textSequence(), null)).isEqualTo(node.text());
+        var text = node.text();
+        if (text != null && maxTextLength > 0) {
+            text = StringUtils.left(text, maxTextLength);
+        }
+
+        final var attributes = ImmutableMap.<String, String>builder();
+        for (final var name : Optional.ofNullable(request.getAttributeRequests()).orElse(Set.of())) {
+            attributes.put(name, node.attribute(name));
+        }
+        final var child = ImmutableMap.<XPath, List<Node<XPath>>>builder();
+        for (final var entry : Optional.ofNullable(request.getChildRequests()).orElse(Map.of()).entrySet()) {
+            child.put(entry.getKey(), node.find(entry.getKey())
+                                          .stream()
+                                          .map(c -> materialize(c, entry.getValue(), maxTextLength))
+                                          .collect(Collectors.toList()));
+        }
+        return ParsedNode.<XPath>builder()
+                         .text(text)
+                         .attributes(attributes.build())
+                         .child(child.build())
+                         .build();
+    }
+
+    private List<Node<XPath>> parse(Parser parser, Fixture fixture) throws Exception {
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            return parser.parse(in, fixture.itemRootXPath, fixture.nodeRequest)
+                         .toList()
+                         .blockingGet();
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package github.sejour.harvestmoon.path.xml;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.stream.XMLInputFactory;
 
 import org.junit.Before;
+import org.junit.Test;
 import org.junit.experimental.theories.DataPoints;
 import org.junit.experimental.theories.Theories;
 import org.junit.experimental.theories.Theory;
 import org.junit.runner.RunWith;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
 
 import lombok.Builder;
 import lombok.Value;
@@ -17,10 +27,12 @@ public class XPathStreamReaderTest {
     private static final String TEST_XML_FILE = "/xml/xpath_stream_navigator_test.xml";
 
     private XMLInputFactory factory;
+    private DocumentBuilder documentBuilder;
 
     @Before
-    public void setup() {
+    public void setup() throws Exception {
         factory = XMLInputFactory.newInstance();
+        documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
     }
 
     @Value
@@ -141,6 +153,28 @@ public class XPathStreamReaderTest {
                            "<data type='B'><header>yyy:bar-B-header</header><body>yyy:bar-B-body</body><footer>yyy:bar-B-footer</footer></data>"
                    })
                     .build(),
+            Fixture.builder()
+                   .path("/test/data/foods/food[@genre='korean' or starts-with(@genre, 'west')][2]")
+                   .expects(new String[] {
+                           "<food genre='western'>ハンバーグ</food>"
+                   })
+                    .build(),
+            Fixture.builder()
+                   .path("//food[not(@genre='japanese' or @genre='chinese') and contains(@genre, 'ea')]")
+                   .expects(new String[] {
+                           "<food genre='korean'>カルビクッパ</food>",
+                           "<food genre='korean'>ビビンバ</food>",
+                           "<food genre='korean'>サムギョプサル</food>"
+                   })
+                    .build(),
+            Fixture.builder()
+                   .path("/test/data/venus/venu[2]/name | /test/item[@color][3] | /test/refs/ref[@title='REF1']")
+                   .expects(new String[] {
+                           "<name>STUDIO COAST</name>",
+                           "<ref src='http://www.example.com/ref1' title='REF1'></ref>",
+                           "<item color='blue'></item>"
+                   })
+                    .build(),
             Fixture.builder()
                    .path("/test")
                    .expects(new String[] {
@@ -180,4 +214,72 @@ public class XPathStreamReaderTest {
         }
     }
 
+    @Theory
+    public void testCursor(Fixture fixture) throws Exception {
+        final var iterator = PathIterator.fromAbsoluteXPath(fixture.path);
+
+        try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+            final var streamReader = factory.createXMLStreamReader(in);
+            final var actual = XPathStreamReader.readAll(streamReader, iterator)
+                                                .test()
+                                                .assertComplete()
+                                                .values();
+
+            // 属性の順序はバックエンドによって異なるため、DOM として比較する
+            assertThat(actual).hasSameSizeAs(fixture.expects);
+            for (int i = 0; i < fixture.expects.length; ++i) {
+                assertThat(toDocument(actual.get(i)).isEqualNode(toDocument(fixture.expects[i])))
+                        .as(actual.get(i))
+                        .isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void testUnionOfNestedPaths() throws Exception {
+        // 一致した要素の中は同じ iterator では探さないため、他の選択肢の中の要素を選ぶ union は読めない
+        // // の選択肢は、他の選択肢に一致した要素の中にも一致しうる
+        for (final var path : new String[] { "/test/data | /test/data/foods", "//venu | //venu/name/text()",
+                                             "/test/*[@color] | /test/item/title",
+                                             "//venu | /test/data/venus/venu/name", "//name | //venu",
+                                             "/test/item | //title", "/test/data[@x] | //food[1]" }) {
+            final var iterator = PathIterator.fromAbsoluteXPath(path);
+            assertThat(iterator.isNested()).as(path).isTrue();
+            try (final var in = getClass().getResourceAsStream(TEST_XML_FILE)) {
+                final var streamReader = factory.createXMLStreamReader(in);
+                assertThatThrownBy(() -> XPathStreamReader.readAll(streamReader, iterator))
+                        .as(path)
+                        .isInstanceOf(RuntimeException.class)
+                        .hasMessageContaining("inside another");
+                assertThatThrownBy(() -> XPathStreamReader.readAllFlowable(streamReader, iterator))
+                        .as(path)
+                        .isInstanceOf(RuntimeException.class)
+                        .hasMessageContaining("inside another");
+            }
+        }
+        for (final var path : new String[] { "/test/data/foods | /test/data/venus | /test/data/foods",
+                                             "/test/data//food | /test/refs/ref", "/test/item | /test/refs/ref" }) {
+            assertThat(PathIterator.fromAbsoluteXPath(path).isNested()).as(path).isFalse();
+        }
+    }
+
+    @Test
+    public void testUnionTransitions() {
+        final AttributeLookup attributes = (namespaceURI, localName) -> null;
+        final var iterator = PathIterator.fromAbsoluteXPath("/test/data/foods | /test/data/venus | /test/item");
+
+        // 同じ遷移では同じ iterator を返し、要素毎に作らない
+        final var data = iterator.next("", "test", attributes).next("", "data", attributes);
+        assertThat(data.getAlternatives()).hasSize(2);
+        assertThat(iterator.next("", "test", attributes).next("", "data", attributes)).isSameAs(data);
+        assertThat(data.next("", "venus", attributes)).isSameAs(PathIterator.MATCHED);
+        assertThat(data.next("", "item", attributes)).isNull();
+        assertThat(iterator.next("", "test", attributes).next("", "item", attributes))
+                .isSameAs(PathIterator.MATCHED);
+    }
+
+    private Document toDocument(String xml) throws Exception {
+        return documentBuilder.parse(new InputSource(new StringReader(xml)));
+    }
+
 }